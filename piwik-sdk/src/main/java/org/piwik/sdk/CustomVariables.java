@@ -53,12 +53,12 @@ public class CustomVariables extends HashMap<String, JSONArray> {
         if (index > 0 && index <= MAX_VARIABLES && name != null & value != null) {
 
             if (name.length() > MAX_LENGTH) {
-                Logy.w(LOGGER_TAG, String.format("Name is too long %s", name));
+                Logy.w(LOGGER_TAG, "Name is too long %s", name);
                 name = name.substring(0, MAX_LENGTH);
             }
 
             if (value.length() > MAX_LENGTH) {
-                Logy.w(LOGGER_TAG, String.format("Value is too long %s", value));
+                Logy.w(LOGGER_TAG, "Value is too long %s", value);
                 value = value.substring(0, MAX_LENGTH);
             }
 
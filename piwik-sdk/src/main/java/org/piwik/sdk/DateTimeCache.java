@@ -0,0 +1,65 @@
+/*
+ * Android SDK for Piwik
+ *
+ * @link https://github.com/piwik/piwik-android-sdk
+ * @license https://github.com/piwik/piwik-sdk-android/blob/master/LICENSE BSD-3 Clause
+ */
+
+package org.piwik.sdk;
+
+import android.support.annotation.NonNull;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Formats {@link QueryParams#DATETIME_OF_REQUEST} at most once per second.
+ * Events tracked within the same second share the String.
+ * Threadsafe.
+ */
+class DateTimeCache {
+    static final String PATTERN = "yyyy-MM-dd HH:mm:ssZ";
+
+    private static class Entry {
+        final long second;
+        final TimeZone timeZone;
+        final Locale locale;
+        final String value;
+
+        Entry(long second, TimeZone timeZone, Locale locale, String value) {
+            this.second = second;
+            this.timeZone = timeZone;
+            this.locale = locale;
+            this.value = value;
+        }
+    }
+
+    private volatile Entry mEntry = new Entry(Long.MIN_VALUE, null, null, null);
+    private SimpleDateFormat mFormat;
+
+    /**
+     * @param timeInMillis e.g. {@link System#currentTimeMillis()}
+     * @return the formatted time, like a new {@link SimpleDateFormat} with {@link #PATTERN} would
+     */
+    @NonNull
+    String format(long timeInMillis) {
+        long second = timeInMillis / 1000;
+        Entry entry = mEntry;
+        if (entry.second == second)
+            return entry.value;
+        synchronized (this) {
+            // Picks up changes of the default time zone and locale, like a new formatter per call did
+            TimeZone timeZone = TimeZone.getDefault();
+            Locale locale = Locale.getDefault();
+            if (mFormat == null || !timeZone.equals(mEntry.timeZone) || !locale.equals(mEntry.locale)) {
+                mFormat = new SimpleDateFormat(PATTERN, locale);
+                mFormat.setTimeZone(timeZone);
+            }
+            entry = new Entry(second, timeZone, locale, mFormat.format(new Date(second * 1000)));
+            mEntry = entry;
+        }
+        return entry.value;
+    }
+}
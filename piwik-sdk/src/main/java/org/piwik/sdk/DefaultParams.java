@@ -0,0 +1,99 @@
+/*
+ * Android SDK for Piwik
+ *
+ * @link https://github.com/piwik/piwik-android-sdk
+ * @license https://github.com/piwik/piwik-sdk-android/blob/master/LICENSE BSD-3 Clause
+ */
+
+package org.piwik.sdk;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.piwik.sdk.dispatcher.CompactQuery;
+import org.piwik.sdk.dispatcher.PercentEncoder;
+
+/**
+ * The default parameters that stay the same for every query of a visitor, together with their URL encoded and compact form.
+ * The tracker builds this once and reuses it until one of the defaults changes,
+ * so {@link TrackMe#build(DefaultParams)} and {@link TrackMe#buildCompact(DefaultParams)}
+ * only have to encode the parameters of the event itself.
+ * Immutable.
+ */
+class DefaultParams {
+    static final QueryParams[] PARAMS = {
+            QueryParams.SITE_ID, QueryParams.RECORD, QueryParams.API_VERSION, QueryParams.SEND_IMAGE,
+            QueryParams.VISITOR_ID, QueryParams.USER_ID, QueryParams.VISIT_SCOPE_CUSTOM_VARIABLES
+    };
+    static final int VISITOR_ID_INDEX = 4;
+    static final int USER_ID_INDEX = 5;
+    private static final boolean[] IS_DEFAULT = new boolean[QueryParams.values().length];
+
+    static {
+        for (QueryParams param : PARAMS)
+            IS_DEFAULT[param.ordinal()] = true;
+    }
+
+    private final int mVersion;
+    private final String[] mValues;
+    private final String mEncoded;
+    private final CompactQuery mCompact;
+
+    /**
+     * @param version the version of the defaults this was built from
+     * @param values  values in the order of {@link #PARAMS}, null or empty ones are left out
+     */
+    DefaultParams(int version, @NonNull String[] values) {
+        mVersion = version;
+        mValues = new String[PARAMS.length];
+        StringBuilder encoded = new StringBuilder(128);
+        CompactQuery.Builder compact = new CompactQuery.Builder(128);
+        for (int i = 0; i < PARAMS.length; i++) {
+            if (values[i] == null || values[i].length() == 0)
+                continue;
+            mValues[i] = values[i];
+            if (encoded.length() > 0)
+                encoded.append('&');
+            PercentEncoder.encode(encoded, PARAMS[i].toString()).append('=');
+            PercentEncoder.encode(encoded, values[i]);
+            compact.add(PARAMS[i], values[i]);
+        }
+        mEncoded = encoded.toString();
+        mCompact = compact.build();
+    }
+
+    /**
+     * @return true if the parameter with this ordinal is one of {@link #PARAMS}
+     */
+    static boolean isDefault(int ordinal) {
+        return IS_DEFAULT[ordinal];
+    }
+
+    int getVersion() {
+        return mVersion;
+    }
+
+    /**
+     * @return the value for {@code PARAMS[index]} or null
+     */
+    @Nullable
+    String getValue(int index) {
+        return mValues[index];
+    }
+
+    /**
+     * @return e.g. "idsite=1&rec=1&apiv=1&send_image=0&_id=...&uid=..."
+     */
+    @NonNull
+    String getEncoded() {
+        return mEncoded;
+    }
+
+    /**
+     * @return the same parameters as {@link #getEncoded()}, to be spliced into a {@link CompactQuery.Builder}
+     */
+    @NonNull
+    CompactQuery getCompact() {
+        return mCompact;
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Android SDK for Piwik
+ *
+ * @link https://github.com/piwik/piwik-android-sdk
+ * @license https://github.com/piwik/piwik-sdk-android/blob/master/LICENSE BSD-3 Clause
+ */
+
+package org.piwik.sdk;
+
+import android.support.annotation.NonNull;
+
+/**
+ * The tracker's default parameters, see {@link Tracker#getDefaultTrackMe()}.
+ * Every change publishes a new immutable {@link Snapshot}, so the tracker can read the defaults
+ * for each event without taking the lock that writers hold.
+ */
+class DefaultTrackMe extends TrackMe {
+    private volatile Snapshot mSnapshot = new Snapshot(copyValues());
+
+    /**
+     * Immutable copy of the parameters at one point in time.
+     */
+    static final class Snapshot {
+        private final String[] mValues;
+
+        private Snapshot(String[] values) {
+            mValues = values;
+        }
+
+        public String get(@NonNull QueryParams queryParams) {
+            return mValues[queryParams.ordinal()];
+        }
+    }
+
+    /**
+     * Lock free.
+     *
+     * @return the parameters as of the last change
+     */
+    @NonNull
+    Snapshot getSnapshot() {
+        return mSnapshot;
+    }
+
+    @Override
+    protected synchronized TrackMe set(@NonNull String key, String value) {
+        super.set(key, value);
+        mSnapshot = new Snapshot(copyValues());
+        return this;
+    }
+
+    @Override
+    public synchronized TrackMe set(@NonNull QueryParams key, String value) {
+        super.set(key, value);
+        mSnapshot = new Snapshot(copyValues());
+        return this;
+    }
+}
@@ -0,0 +1,26 @@
+/*
+ * Android SDK for Piwik
+ *
+ * @link https://github.com/piwik/piwik-android-sdk
+ * @license https://github.com/piwik/piwik-sdk-android/blob/master/LICENSE BSD-3 Clause
+ */
+
+package org.piwik.sdk;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+/**
+ * Sees every {@link TrackMe} after the tracker added its default parameters and before it gets encoded and queued,
+ * e.g. to scrub personal data, to sample or to enrich events.
+ * Interceptors run in the order they were added, on the thread that called {@link Tracker#track(TrackMe)}.
+ */
+public interface EventInterceptor {
+    /**
+     * @param tracker the tracker the event belongs to
+     * @param trackMe the event, it may be modified in place
+     * @return the event to pass on to the next interceptor, usually trackMe itself, or null to drop it
+     */
+    @Nullable
+    TrackMe intercept(@NonNull Tracker tracker, @NonNull TrackMe trackMe);
+}
@@ -0,0 +1,115 @@
+/*
+ * Android SDK for Piwik
+ *
+ * @link https://github.com/piwik/piwik-android-sdk
+ * @license https://github.com/piwik/piwik-sdk-android/blob/master/LICENSE BSD-3 Clause
+ */
+
+package org.piwik.sdk;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.piwik.sdk.dispatcher.CompactQuery;
+
+/**
+ * An event that gets tracked over and over, see {@link Tracker#prepare(String, String, String)}.
+ * Category, action and name are encoded once into a {@link CompactQuery} that is spliced into each event,
+ * like {@link DefaultParams} does for the defaults, so {@link #fire(float)} only encodes what changes between calls.
+ * The tracked events are the same as with {@link Tracker#trackEvent(String, String, String, float)}.
+ * <p/>
+ * Immutable and threadsafe.
+ */
+public class EventTemplate {
+    /**
+     * Adjacent ordinals, so the prebuilt parameters take the same place in the query as when encoded one by one.
+     */
+    static final QueryParams[] PARAMS = {QueryParams.EVENT_CATEGORY, QueryParams.EVENT_ACTION, QueryParams.EVENT_NAME};
+
+    private final Tracker mTracker;
+    private final String[] mValues = new String[PARAMS.length];
+    private final CompactQuery mCompact;
+
+    EventTemplate(@NonNull Tracker tracker, String category, String action, @Nullable String name) {
+        mTracker = tracker;
+        String[] values = {category, action, name};
+        CompactQuery.Builder compact = new CompactQuery.Builder(64);
+        for (int i = 0; i < PARAMS.length; i++) {
+            // Empty values are not tracked, see TrackMe#set(QueryParams, String)
+            if (values[i] == null || values[i].length() == 0)
+                continue;
+            mValues[i] = values[i];
+            compact.add(PARAMS[i], values[i]);
+        }
+        mCompact = compact.build();
+    }
+
+    public String getCategory() {
+        return mValues[0];
+    }
+
+    public String getAction() {
+        return mValues[1];
+    }
+
+    @Nullable
+    public String getName() {
+        return mValues[2];
+    }
+
+    /**
+     * Tracks the event without a value.
+     *
+     * @return the tracker for chaining
+     */
+    public Tracker fire() {
+        return mTracker.track(newTrackMe());
+    }
+
+    /**
+     * Tracks the event with a value.
+     *
+     * @param value see {@link Tracker#trackEvent(String, String, String, float)}
+     * @return the tracker for chaining
+     */
+    public Tracker fire(float value) {
+        return mTracker.track(newTrackMe().set(QueryParams.EVENT_VALUE, value));
+    }
+
+    private TrackMe newTrackMe() {
+        TrackMe trackMe = mTracker.obtainTrackMe();
+        for (int i = 0; i < PARAMS.length; i++)
+            trackMe.set(PARAMS[i], mValues[i]);
+        trackMe.setTemplate(this);
+        return trackMe;
+    }
+
+    /**
+     * @return true if the parameter with this ordinal is one of {@link #PARAMS}
+     */
+    static boolean isTemplateParam(int ordinal) {
+        return ordinal >= PARAMS[0].ordinal() && ordinal <= PARAMS[PARAMS.length - 1].ordinal();
+    }
+
+    /**
+     * Same instances mean the values still come from this template, e.g. an {@link EventInterceptor} didn't replace them.
+     *
+     * @param values known parameters of a TrackMe, indexed by {@link QueryParams#ordinal()}
+     * @return true if {@link #getCompact()} can stand in for the values
+     */
+    boolean hasValues(String[] values) {
+        for (int i = 0; i < PARAMS.length; i++) {
+            if (values[PARAMS[i].ordinal()] != mValues[i])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return category, action and name, to be spliced into a {@link CompactQuery.Builder}
+     */
+    @NonNull
+    CompactQuery getCompact() {
+        return mCompact;
+    }
+}
@@ -10,6 +10,9 @@ package org.piwik.sdk;
 /**
  * Query parameters supported by the tracking HTTP API.
  * See <a href="http://developer.piwik.org/api-reference/tracking-api">Tracking HTTP API</a>
+ * <p/>
+ * Queued events refer to the parameters by ordinal, see {@link org.piwik.sdk.dispatcher.CompactQuery},
+ * so new parameters must be added at the end.
  */
 public enum QueryParams {
     //Required parameters
@@ -308,7 +311,14 @@ public enum QueryParams {
      * If set to 0 (send_image=0) Piwik will respond with a HTTP 204 response code instead of a GIF image.<p>
      * This improves performance and can fix errors if images are not allowed to be obtained directly (eg Chrome Apps). Available since Piwik 2.10.0
      */
-    SEND_IMAGE("send_image");
+    SEND_IMAGE("send_image"),
+
+    /**
+     * The client side sampling rate the event was kept with, see {@link Sampling}.<p>
+     * Not part of the Piwik tracking API, Piwik itself ignores it.
+     * Only useful with a custom server side plugin that reads it to scale reports back up.
+     */
+    SAMPLING_RATE("sample_rate");
 
     private final String value;
 
@@ -0,0 +1,189 @@
+/*
+ * Android SDK for Piwik
+ *
+ * @link https://github.com/piwik/piwik-android-sdk
+ * @license https://github.com/piwik/piwik-sdk-android/blob/master/LICENSE BSD-3 Clause
+ */
+
+package org.piwik.sdk;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.piwik.sdk.dispatcher.Priority;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Token bucket that protects the queue and the server from runaway tracking, e.g. a trackEvent() in onDraw().
+ * See {@link Tracker#setRateLimiter(RateLimiter)}.
+ * <p/>
+ * Up to {@code burst} events pass at once, after that only {@code eventsPerSecond}. Excess events are rejected,
+ * or coalesced into the most recent one, see {@link #setCoalescing(boolean)}.
+ * {@link Priority#HIGH} events are never rejected.
+ * Checking an event is a single compare-and-set on the calling thread, no locks are involved.
+ */
+public class RateLimiter {
+    /**
+     * Categories beyond this share the tracker wide bucket, so random category names can't grow the map without bound.
+     */
+    static final int MAX_CATEGORIES = 64;
+    private final int mBurst;
+    private final double mEventsPerSecond;
+    private final Bucket mBucket;
+    private final ConcurrentHashMap<String, Bucket> mCategoryBuckets = new ConcurrentHashMap<>();
+    private volatile boolean mPerCategory = false;
+    private volatile boolean mCoalescing = false;
+    private final AtomicLong mRejected = new AtomicLong();
+    private final AtomicLong mCoalesced = new AtomicLong();
+
+    /**
+     * @param burst           how many events may pass at once, at least 1
+     * @param eventsPerSecond how fast the bucket refills, rates below one event in about 100 days are rounded up to that
+     */
+    public RateLimiter(int burst, double eventsPerSecond) {
+        if (burst < 1 || !(eventsPerSecond > 0))
+            throw new IllegalArgumentException("Burst must be at least 1 and the rate positive");
+        mBurst = burst;
+        mEventsPerSecond = eventsPerSecond;
+        mBucket = new Bucket(burst, eventsPerSecond);
+    }
+
+    /**
+     * @param perCategory true to give each event category its own bucket with the same limits,
+     *                    so one flooding category doesn't starve the others
+     * @return this for chaining
+     */
+    public RateLimiter setPerCategory(boolean perCategory) {
+        mPerCategory = perCategory;
+        return this;
+    }
+
+    public boolean isPerCategory() {
+        return mPerCategory;
+    }
+
+    /**
+     * @param coalescing true to keep the most recent rejected event of each bucket instead of dropping it,
+     *                   it's sent together with the next event that passes the same bucket.
+     *                   So a flood still ends with its latest state, at the cost of up to one extra event per passed one.
+     * @return this for chaining
+     */
+    public RateLimiter setCoalescing(boolean coalescing) {
+        mCoalescing = coalescing;
+        return this;
+    }
+
+    public boolean isCoalescing() {
+        return mCoalescing;
+    }
+
+    /**
+     * @return false if the event exceeds the limit and should be dropped, when coalescing it's kept for {@link #pollCoalesced(TrackMe)}
+     */
+    public boolean tryAcquire(@NonNull TrackMe trackMe) {
+        if (trackMe.getPriority() == Priority.HIGH)
+            return true;
+        String category = mPerCategory ? trackMe.get(QueryParams.EVENT_CATEGORY) : null;
+        if (tryAcquire(category, System.nanoTime()))
+            return true;
+        if (mCoalescing) {
+            // Kept beyond this call, so it must not go back to a pool
+            TrackMePool.detach(trackMe);
+            getBucket(category).mHeld.set(trackMe);
+        }
+        return false;
+    }
+
+    boolean tryAcquire(@Nullable String category, long now) {
+        if (getBucket(category).tryAcquire(now))
+            return true;
+        mRejected.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * @param passed an event that just passed {@link #tryAcquire(TrackMe)}
+     * @return the latest event rejected in the same bucket since the last call, to be tracked before passed, or null
+     */
+    @Nullable
+    public TrackMe pollCoalesced(@NonNull TrackMe passed) {
+        if (!mCoalescing || passed.getPriority() == Priority.HIGH)
+            return null;
+        Bucket bucket = getBucket(mPerCategory ? passed.get(QueryParams.EVENT_CATEGORY) : null);
+        // Cheap check first, most calls find nothing
+        if (bucket.mHeld.get() == null)
+            return null;
+        TrackMe held = bucket.mHeld.getAndSet(null);
+        if (held != null)
+            mCoalesced.incrementAndGet();
+        return held;
+    }
+
+    private Bucket getBucket(@Nullable String category) {
+        if (category == null)
+            return mBucket;
+        Bucket bucket = mCategoryBuckets.get(category);
+        if (bucket != null)
+            return bucket;
+        if (mCategoryBuckets.size() >= MAX_CATEGORIES)
+            return mBucket;
+        bucket = new Bucket(mBurst, mEventsPerSecond);
+        Bucket previous = mCategoryBuckets.putIfAbsent(category, bucket);
+        return previous != null ? previous : bucket;
+    }
+
+    /**
+     * @return how many events were rejected so far
+     */
+    public long getRejectedCount() {
+        return mRejected.get();
+    }
+
+    /**
+     * @return how many rejected events were sent anyway as the latest of their burst, see {@link #setCoalescing(boolean)}
+     */
+    public long getCoalescedCount() {
+        return mCoalesced.get();
+    }
+
+    /**
+     * Token bucket in the form of the generic cell rate algorithm:
+     * instead of counting tokens it keeps the time at which the bucket would be full again.
+     */
+    static class Bucket {
+        /**
+         * About 100 days and 73 years, keep the time arithmetic below from overflowing for tiny rates or huge bursts.
+         * Bursts that would take longer than MAX_TOLERANCE to refill are capped accordingly.
+         */
+        static final long MAX_INTERVAL = Long.MAX_VALUE / 1024;
+        static final long MAX_TOLERANCE = Long.MAX_VALUE / 4;
+        private static final long EMPTY = Long.MIN_VALUE;
+        private final long mInterval;
+        private final long mTolerance;
+        private final AtomicLong mFullAt = new AtomicLong(EMPTY);
+        final AtomicReference<TrackMe> mHeld = new AtomicReference<>();
+
+        Bucket(int burst, double eventsPerSecond) {
+            mInterval = (long) Math.max(1d, Math.min(MAX_INTERVAL, TimeUnit.SECONDS.toNanos(1) / eventsPerSecond));
+            mTolerance = burst - 1 > MAX_TOLERANCE / mInterval ? MAX_TOLERANCE : mInterval * (burst - 1);
+        }
+
+        /**
+         * @param now the current time in nanoseconds, like {@link System#nanoTime()} only differences matter
+         */
+        boolean tryAcquire(long now) {
+            while (true) {
+                long fullAt = mFullAt.get();
+                long start = fullAt == EMPTY || fullAt - now < 0 ? now : fullAt;
+                if (start - now > mTolerance)
+                    return false;
+                if (mFullAt.compareAndSet(fullAt, start + mInterval))
+                    return true;
+            }
+        }
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Android SDK for Piwik
+ *
+ * @link https://github.com/piwik/piwik-android-sdk
+ * @license https://github.com/piwik/piwik-sdk-android/blob/master/LICENSE BSD-3 Clause
+ */
+
+package org.piwik.sdk;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Client side sampling rates per kind of event, see {@link Tracker#setSampling(Sampling)}.
+ * <p/>
+ * Whether an event is kept only depends on a hash of the visitor id and the rate,
+ * so a visitor is either tracked completely or not at all for a given rate.
+ * Kept events carry the rate in {@link QueryParams#SAMPLING_RATE}, a custom server side plugin can use it to scale reports back up.
+ * Goals, orders, downloads, outlinks, searches and content interactions are never sampled.
+ */
+public class Sampling {
+    static final String EXCEPTION_CATEGORY = "Exception";
+    private volatile double mScreenRate = 1d;
+    private volatile double mEventRate = 1d;
+    private volatile double mContentImpressionRate = 1d;
+    private volatile double mExceptionRate = 1d;
+    private final Map<String, Double> mEventCategoryRates = new ConcurrentHashMap<>();
+
+    /**
+     * @param rate fraction of visitors whose screen views are tracked, between 0 and 1
+     */
+    public Sampling setScreenRate(double rate) {
+        mScreenRate = checkRate(rate);
+        return this;
+    }
+
+    /**
+     * @param rate fraction of visitors whose events are tracked, for categories without their own rate
+     */
+    public Sampling setEventRate(double rate) {
+        mEventRate = checkRate(rate);
+        return this;
+    }
+
+    /**
+     * @param category the event category
+     * @param rate     fraction of visitors whose events of this category are tracked
+     */
+    public Sampling setEventRate(@NonNull String category, double rate) {
+        mEventCategoryRates.put(category, checkRate(rate));
+        return this;
+    }
+
+    /**
+     * @param rate fraction of visitors whose content impressions are tracked
+     */
+    public Sampling setContentImpressionRate(double rate) {
+        mContentImpressionRate = checkRate(rate);
+        return this;
+    }
+
+    /**
+     * @param rate fraction of visitors whose exceptions are tracked, see {@link Tracker#trackException(Throwable, String, boolean)}
+     */
+    public Sampling setExceptionRate(double rate) {
+        mExceptionRate = checkRate(rate);
+        return this;
+    }
+
+    private static double checkRate(double rate) {
+        if (rate < 0d || rate > 1d)
+            throw new IllegalArgumentException("Sampling rate must be between 0 and 1: " + rate);
+        return rate;
+    }
+
+    /**
+     * @return the rate that applies to this event, 1 if it is not sampled
+     */
+    public double getRate(@NonNull TrackMe trackMe) {
+        // Goals, orders, downloads, outlinks and searches are too valuable to sample,
+        // checked first since some of them also carry an event category, e.g. app downloads
+        if (trackMe.has(QueryParams.GOAL_ID) || trackMe.has(QueryParams.ECOMMERCE_ITEMS) || trackMe.has(QueryParams.DOWNLOAD)
+                || trackMe.has(QueryParams.LINK) || trackMe.has(QueryParams.SEARCH_KEYWORD))
+            return 1d;
+        String category = trackMe.get(QueryParams.EVENT_CATEGORY);
+        if (category != null) {
+            if (EXCEPTION_CATEGORY.equals(category))
+                return mExceptionRate;
+            Double rate = mEventCategoryRates.get(category);
+            return rate != null ? rate : mEventRate;
+        }
+        if (trackMe.has(QueryParams.CONTENT_NAME))
+            return trackMe.has(QueryParams.CONTENT_INTERACTION) ? 1d : mContentImpressionRate;
+        return mScreenRate;
+    }
+
+    /**
+     * Decides whether the event is kept and if so attaches the rate to it.
+     *
+     * @param trackMe   the event
+     * @param visitorId the visitor the event belongs to
+     * @return false if the event should be dropped
+     */
+    public boolean sample(@NonNull TrackMe trackMe, @Nullable String visitorId) {
+        double rate = getRate(trackMe);
+        if (rate >= 1d)
+            return true;
+        if (!isSampled(visitorId, rate))
+            return false;
+        trackMe.set(QueryParams.SAMPLING_RATE, Double.toString(rate));
+        return true;
+    }
+
+    /**
+     * @return true if the visitor is within the sampled fraction, always the same answer for the same visitor and rate
+     */
+    public static boolean isSampled(@Nullable String visitorId, double rate) {
+        if (rate >= 1d)
+            return true;
+        if (rate <= 0d || visitorId == null)
+            return false;
+        return getBucket(visitorId) < rate;
+    }
+
+    /**
+     * Maps the visitor id to [0, 1), using FNV-1a since {@link String#hashCode()} spreads short ids poorly.
+     */
+    static double getBucket(@NonNull String visitorId) {
+        int hash = 0x811c9dc5;
+        for (int i = 0; i < visitorId.length(); i++) {
+            hash ^= visitorId.charAt(i);
+            hash *= 0x01000193;
+        }
+        // Final avalanche, FNV alone leaves the high bits of similar ids close together
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        return (hash & 0xffffffffL) / (double) (1L << 32);
+    }
+}
@@ -9,24 +9,67 @@ package org.piwik.sdk;
 
 import android.support.annotation.NonNull;
 
+import org.piwik.sdk.dispatcher.CompactQuery;
 import org.piwik.sdk.dispatcher.Dispatcher;
+import org.piwik.sdk.dispatcher.PercentEncoder;
+import org.piwik.sdk.dispatcher.Priority;
 
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Map;
 
 /**
  * This objects represents one query to Piwik.
  * For each event send to Piwik a TrackMe gets created, either explicitly by you or implicitly by the Tracker.
  */
 public class TrackMe {
-    private static final int DEFAULT_QUERY_CAPACITY = 14;
-    private final HashMap<String, String> mQueryParams = new HashMap<>(DEFAULT_QUERY_CAPACITY);
-    private final CustomVariables mScreenCustomVariable = new CustomVariables();
+    private static final QueryParams[] PARAMS = QueryParams.values();
+    private static final Map<String, QueryParams> PARAMS_BY_KEY = new HashMap<>(PARAMS.length * 2);
+
+    static {
+        for (QueryParams param : PARAMS)
+            PARAMS_BY_KEY.put(param.toString(), param);
+    }
+
+    // Goal ids, event values, visit counts and the like are mostly small, their Strings are created once
+    private static final String[] SMALL_INTS = new String[1024];
+    // The query is built into a per thread buffer, so only the resulting String gets allocated
+    private static final int MAX_BUILDER_CAPACITY = 8 * 1024;
+    private static final ThreadLocal<StringBuilder> BUILDER = new ThreadLocal<StringBuilder>() {
+        @Override
+        protected StringBuilder initialValue() {
+            return new StringBuilder(512);
+        }
+    };
+    private static final ThreadLocal<CompactQuery.Builder> COMPACT_BUILDER = new ThreadLocal<CompactQuery.Builder>() {
+        @Override
+        protected CompactQuery.Builder initialValue() {
+            return new CompactQuery.Builder(512);
+        }
+    };
+
+    // Known parameters live at their ordinal, anything else (e.g. dimensionN) in the lazily created side table
+
+    private final String[] mValues = new String[PARAMS.length];
+    private HashMap<String, String> mCustomParams;
+    private CustomVariables mScreenCustomVariable;
+    private Priority mPriority = Priority.NORMAL;
+    // Set while this belongs to a TrackMePool
+    private TrackMePool mPool;
+    private EventTemplate mTemplate;
 
     protected synchronized TrackMe set(@NonNull String key, String value) {
-        if (value == null)
-            mQueryParams.remove(key);
-        else if (value.length() > 0)
-            mQueryParams.put(key, value);
+        QueryParams param = PARAMS_BY_KEY.get(key);
+        if (param != null) {
+            set(param, value);
+        } else if (value == null) {
+            if (mCustomParams != null)
+                mCustomParams.remove(key);
+        } else if (value.length() > 0) {
+            if (mCustomParams == null)
+                mCustomParams = new HashMap<>();
+            mCustomParams.put(key, value);
+        }
         return this;
     }
 
@@ -44,27 +87,30 @@ public class TrackMe {
      * @return tracker instance
      */
     public synchronized TrackMe set(@NonNull QueryParams key, String value) {
-        set(key.toString(), value);
+        if (value == null)
+            mValues[key.ordinal()] = null;
+        else if (value.length() > 0)
+            mValues[key.ordinal()] = value;
         return this;
     }
 
-    public synchronized TrackMe set(@NonNull QueryParams key, int value) {
-        set(key, Integer.toString(value));
+    public TrackMe set(@NonNull QueryParams key, int value) {
+        set(key, toString(value));
         return this;
     }
 
-    public synchronized TrackMe set(@NonNull QueryParams key, float value) {
+    public TrackMe set(@NonNull QueryParams key, float value) {
         set(key, Float.toString(value));
         return this;
     }
 
-    public synchronized TrackMe set(@NonNull QueryParams key, long value) {
+    public TrackMe set(@NonNull QueryParams key, long value) {
         set(key, Long.toString(value));
         return this;
     }
 
     public synchronized boolean has(@NonNull QueryParams queryParams) {
-        return mQueryParams.containsKey(queryParams.toString());
+        return mValues[queryParams.ordinal()] != null;
     }
 
     /**
@@ -75,7 +121,9 @@ public class TrackMe {
      * @return this (for chaining)
      */
     public synchronized TrackMe trySet(@NonNull QueryParams key, int value) {
-        return trySet(key, String.valueOf(value));
+        if (!has(key))
+            set(key, value);
+        return this;
     }
 
     /**
@@ -86,11 +134,15 @@ public class TrackMe {
      * @return this (for chaining)
      */
     public synchronized TrackMe trySet(@NonNull QueryParams key, float value) {
-        return trySet(key, String.valueOf(value));
+        if (!has(key))
+            set(key, value);
+        return this;
     }
 
     public synchronized TrackMe trySet(@NonNull QueryParams key, long value) {
-        return trySet(key, String.valueOf(value));
+        if (!has(key))
+            set(key, value);
+        return this;
     }
 
     /**
@@ -112,12 +164,153 @@ public class TrackMe {
      * @return the query, but without the base URL
      */
     public synchronized String build() {
-        set(QueryParams.SCREEN_SCOPE_CUSTOM_VARIABLES, mScreenCustomVariable.toString());
-        return Dispatcher.urlEncodeUTF8(mQueryParams);
+        updateScreenCustomVariable();
+        StringBuilder sb = obtainBuilder();
+        sb.append('?');
+        // Same order as DefaultParams#getEncoded() so both builds yield the same query
+        for (QueryParams param : DefaultParams.PARAMS)
+            appendParam(sb, param.toString(), mValues[param.ordinal()]);
+        appendParams(sb);
+        return sb.length() > 1 ? releaseBuilder(sb) : "";
+    }
+
+    /**
+     * Appends all but the {@link DefaultParams#PARAMS} in a stable order, known ones by ordinal followed by the custom ones.
+     */
+    private void appendParams(StringBuilder sb) {
+        for (int i = 0; i < PARAMS.length; i++) {
+            if (DefaultParams.isDefault(i))
+                continue;
+            appendParam(sb, PARAMS[i].toString(), mValues[i]);
+        }
+        if (mCustomParams == null)
+            return;
+        for (Map.Entry<String, String> entry : mCustomParams.entrySet())
+            appendParam(sb, PercentEncoder.encode(entry.getKey()), entry.getValue());
+    }
+
+    /**
+     * @param encodedKey the names of the known parameters don't need encoding
+     */
+    private static void appendParam(StringBuilder sb, String encodedKey, String value) {
+        if (value == null)
+            return;
+        if (sb.length() > 1)
+            sb.append('&');
+        sb.append(encodedKey);
+        sb.append('=');
+        PercentEncoder.encode(sb, value);
+    }
+
+    /**
+     * Like {@link #build()} but reuses the encoded defaults for parameters that still hold the default values.
+     * Falls back to {@link #build()} if any of them was changed, e.g. by an {@link EventInterceptor}.
+     */
+    synchronized String build(@NonNull DefaultParams defaults) {
+        if (!hasDefaults(defaults))
+            return build();
+        updateScreenCustomVariable();
+        StringBuilder sb = obtainBuilder();
+        sb.append('?').append(defaults.getEncoded());
+        appendParams(sb);
+        return releaseBuilder(sb);
+    }
+
+    /**
+     * Same parameters in the same order as {@link #build()}, but as {@link CompactQuery} for the dispatch queue.
+     */
+    synchronized CompactQuery buildCompact() {
+        updateScreenCustomVariable();
+        CompactQuery.Builder builder = COMPACT_BUILDER.get();
+        for (QueryParams param : DefaultParams.PARAMS)
+            builder.add(param, mValues[param.ordinal()]);
+        return buildCompact(builder);
+    }
+
+    /**
+     * Like {@link #buildCompact()} but splices in the prebuilt defaults instead of encoding them again.
+     * Falls back to {@link #buildCompact()} if any of them was changed, e.g. by an {@link EventInterceptor}.
+     */
+    synchronized CompactQuery buildCompact(@NonNull DefaultParams defaults) {
+        if (!hasDefaults(defaults))
+            return buildCompact();
+        updateScreenCustomVariable();
+        CompactQuery.Builder builder = COMPACT_BUILDER.get();
+        builder.add(defaults.getCompact());
+        return buildCompact(builder);
+    }
+
+    /**
+     * Adds everything but the defaults, which the builder already holds.
+     */
+    private CompactQuery buildCompact(CompactQuery.Builder builder) {
+        final boolean fromTemplate = mTemplate != null && mTemplate.hasValues(mValues);
+        final int templateStart = EventTemplate.PARAMS[0].ordinal();
+        for (int i = 0; i < PARAMS.length; i++) {
+            if (DefaultParams.isDefault(i))
+                continue;
+            if (fromTemplate && EventTemplate.isTemplateParam(i)) {
+                if (i == templateStart)
+                    builder.add(mTemplate.getCompact());
+                continue;
+            }
+            builder.add(PARAMS[i], mValues[i]);
+        }
+        if (mCustomParams != null) {
+            for (Map.Entry<String, String> entry : mCustomParams.entrySet())
+                builder.add(entry.getKey(), entry.getValue());
+        }
+        CompactQuery query = builder.build();
+        if (builder.getCapacity() > MAX_BUILDER_CAPACITY)
+            COMPACT_BUILDER.remove();
+        return query;
+    }
+
+    /**
+     * @return true if all default parameters still hold the values injected from these defaults
+     */
+    private boolean hasDefaults(DefaultParams defaults) {
+        final QueryParams[] params = DefaultParams.PARAMS;
+        for (int i = 0; i < params.length; i++) {
+            // Same instance means it was injected from the defaults and is covered by the prebuilt forms
+            if (mValues[params[i].ordinal()] != defaults.getValue(i))
+                return false;
+        }
+        return true;
+    }
+
+    private void updateScreenCustomVariable() {
+        set(QueryParams.SCREEN_SCOPE_CUSTOM_VARIABLES, mScreenCustomVariable != null ? mScreenCustomVariable.toString() : null);
+    }
+
+    private static StringBuilder obtainBuilder() {
+        StringBuilder sb = BUILDER.get();
+        sb.setLength(0);
+        return sb;
+    }
+
+    private static String releaseBuilder(StringBuilder sb) {
+        String query = sb.toString();
+        // Don't hold on to the memory of an unusually large query
+        if (sb.capacity() > MAX_BUILDER_CAPACITY)
+            BUILDER.remove();
+        return query;
+    }
+
+    private static String toString(int value) {
+        if (value < 0 || value >= SMALL_INTS.length)
+            return Integer.toString(value);
+        String string = SMALL_INTS[value];
+        if (string == null) {
+            // Racing threads create equal Strings, that's fine
+            string = Integer.toString(value);
+            SMALL_INTS[value] = string;
+        }
+        return string;
     }
 
     public synchronized String get(@NonNull QueryParams queryParams) {
-        return mQueryParams.get(queryParams.toString());
+        return mValues[queryParams.ordinal()];
     }
 
     /**
@@ -125,12 +318,64 @@ public class TrackMe {
      * Only takes effect when setting prior to tracking the screen view.
      */
     public synchronized TrackMe setScreenCustomVariable(int index, String name, String value) {
-        mScreenCustomVariable.put(index, name, value);
+        getScreenCustomVariable().put(index, name, value);
         return this;
     }
 
     public synchronized CustomVariables getScreenCustomVariable() {
+        // Most events have none, so it's only created on demand
+        if (mScreenCustomVariable == null)
+            mScreenCustomVariable = new CustomVariables();
         return mScreenCustomVariable;
     }
 
+    /**
+     * {@link Priority#HIGH} events are sent before any queued normal events, see {@link Dispatcher#submit(String, Priority)}.
+     * Default is {@link Priority#NORMAL}.
+     */
+    public synchronized TrackMe setPriority(@NonNull Priority priority) {
+        mPriority = priority;
+        return this;
+    }
+
+    @NonNull
+    public synchronized Priority getPriority() {
+        return mPriority;
+    }
+
+    /**
+     * @return a copy of the known parameters, indexed by {@link QueryParams#ordinal()}
+     */
+    synchronized String[] copyValues() {
+        return mValues.clone();
+    }
+
+    synchronized TrackMePool getPool() {
+        return mPool;
+    }
+
+    synchronized void setPool(TrackMePool pool) {
+        mPool = pool;
+    }
+
+    /**
+     * @param template provides the prebuilt event parameters for {@link #buildCompact()}
+     */
+    synchronized void setTemplate(EventTemplate template) {
+        mTemplate = template;
+    }
+
+    /**
+     * Brings this back into the state of a new TrackMe, see {@link TrackMePool}.
+     */
+    synchronized void reset() {
+        Arrays.fill(mValues, null);
+        if (mCustomParams != null)
+            mCustomParams.clear();
+        if (mScreenCustomVariable != null)
+            mScreenCustomVariable.clear();
+        mPriority = Priority.NORMAL;
+        mTemplate = null;
+    }
+
 }
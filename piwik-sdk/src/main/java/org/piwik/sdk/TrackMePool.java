@@ -0,0 +1,75 @@
+/*
+ * Android SDK for Piwik
+ *
+ * @link https://github.com/piwik/piwik-android-sdk
+ * @license https://github.com/piwik/piwik-sdk-android/blob/master/LICENSE BSD-3 Clause
+ */
+
+package org.piwik.sdk;
+
+import android.support.annotation.NonNull;
+
+/**
+ * Bounded pool of the TrackMe objects the tracker creates for its convenience methods, see {@link Tracker#setTrackMePoolSize(int)}.
+ * A TrackMe only goes back into the pool if nothing outside of the tracker could have seen it,
+ * any TrackMe handed to an {@link EventInterceptor} is left to the garbage collector instead.
+ * Threadsafe.
+ */
+class TrackMePool {
+    private final TrackMe[] mFree;
+    private int mSize;
+    private long mCreated;
+
+    TrackMePool(int capacity) {
+        mFree = new TrackMe[capacity];
+    }
+
+    int getCapacity() {
+        return mFree.length;
+    }
+
+    /**
+     * @return how many TrackMe objects this pool had to create
+     */
+    synchronized long getCreatedCount() {
+        return mCreated;
+    }
+
+    @NonNull
+    TrackMe obtain() {
+        TrackMe trackMe = null;
+        synchronized (this) {
+            if (mSize > 0) {
+                trackMe = mFree[--mSize];
+                mFree[mSize] = null;
+            } else {
+                mCreated++;
+            }
+        }
+        if (trackMe == null)
+            trackMe = new TrackMe();
+        trackMe.setPool(this);
+        return trackMe;
+    }
+
+    /**
+     * Resets the TrackMe and keeps it for reuse if it came from this pool and there is room.
+     */
+    void release(@NonNull TrackMe trackMe) {
+        if (trackMe.getPool() != this)
+            return;
+        trackMe.setPool(null);
+        trackMe.reset();
+        synchronized (this) {
+            if (mSize < mFree.length)
+                mFree[mSize++] = trackMe;
+        }
+    }
+
+    /**
+     * For a TrackMe that is about to be seen by code outside of the tracker, it won't be reused.
+     */
+    static void detach(@NonNull TrackMe trackMe) {
+        trackMe.setPool(null);
+    }
+}
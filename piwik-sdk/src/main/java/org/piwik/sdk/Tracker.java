@@ -14,8 +14,15 @@ import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
 
+import org.piwik.sdk.dispatcher.CompactQuery;
+import org.piwik.sdk.dispatcher.DispatchScheduler;
 import org.piwik.sdk.dispatcher.Dispatcher;
+import org.piwik.sdk.dispatcher.EventDiskQueue;
+import org.piwik.sdk.dispatcher.NetworkScheduler;
+import org.piwik.sdk.dispatcher.OverflowPolicy;
+import org.piwik.sdk.dispatcher.Priority;
 import org.piwik.sdk.ecommerce.EcommerceItems;
 import org.piwik.sdk.tools.Checksum;
 import org.piwik.sdk.tools.CurrencyFormatter;
@@ -23,14 +30,18 @@ import org.piwik.sdk.tools.DeviceHelper;
 import org.piwik.sdk.tools.Logy;
 
 import java.io.File;
+import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.List;
 import java.util.Random;
 import java.util.UUID;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -53,6 +64,10 @@ public class Tracker {
     protected static final String PREF_KEY_TRACKER_VISITCOUNT = "tracker.visitcount";
     protected static final String PREF_KEY_TRACKER_PREVIOUSVISIT = "tracker.previousvisit";
 
+    private static final String QUEUE_DIRECTORY = "piwik_queue";
+    private static final String SPILL_SUFFIX = "_spill";
+    private static final String HIGH_PRIORITY_SUFFIX = "_high";
+
     /**
      * The ID of the website we're tracking a visit/action for.
      */
@@ -66,6 +81,7 @@ public class Tracker {
     private final Piwik mPiwik;
     private String mLastEvent;
     private String mApplicationDomain;
+    private volatile String[] mApplicationURLs;
     private long mSessionTimeout = 30 * 60 * 1000;
     private long mSessionStartTime;
     private final Object mSessionLock = new Object();
@@ -73,8 +89,19 @@ public class Tracker {
     private final CustomVariables mVisitCustomVariable = new CustomVariables();
     private final Dispatcher mDispatcher;
     private final Random mRandomAntiCachingValue = new Random(new Date().getTime());
+    private final DateTimeCache mDateTimeCache = new DateTimeCache();
+
+    private final DefaultTrackMe mDefaultTrackMe = new DefaultTrackMe();
+
+    private static final EventInterceptor[] NO_INTERCEPTORS = new EventInterceptor[0];
+    // Copy on write, so track() can walk it without locking or allocating
+    private volatile EventInterceptor[] mInterceptors = NO_INTERCEPTORS;
+    private volatile Sampling mSampling;
 
-    private final TrackMe mDefaultTrackMe = new TrackMe();
+    private final AtomicInteger mDefaultsVersion = new AtomicInteger();
+    private volatile DefaultParams mDefaultParams;
+    private volatile RateLimiter mRateLimiter;
+    private volatile TrackMePool mTrackMePool;
 
     /**
      * Use Piwik.newTracker() method to create new trackers
@@ -205,6 +232,96 @@ public class Tracker {
         return mDispatcher.getDispatchInterval();
     }
 
+    /**
+     * Holds events back while the device is offline and sends them as soon as it is online again.
+     * On mobile data the dispatch interval is stretched while the device is not charging, see {@link NetworkScheduler}.
+     *
+     * @param enabled true to take connectivity and charging state into account
+     * @return this tracker for chaining
+     */
+    public Tracker setNetworkAwareDispatch(boolean enabled) {
+        DispatchScheduler current = mDispatcher.getScheduler();
+        if (current instanceof NetworkScheduler) {
+            if (enabled)
+                return this;
+            ((NetworkScheduler) current).unregister();
+        }
+        if (enabled) {
+            NetworkScheduler scheduler = new NetworkScheduler(mPiwik.getContext(), mDispatcher);
+            scheduler.register();
+            mDispatcher.setScheduler(scheduler);
+        } else {
+            mDispatcher.setScheduler(null);
+        }
+        return this;
+    }
+
+    public boolean isNetworkAwareDispatch() {
+        return mDispatcher.getScheduler() instanceof NetworkScheduler;
+    }
+
+    /**
+     * Keeps queued events on disk, so events that were not yet dispatched when the app got killed are sent on the next start.
+     * Enabling this recovers and schedules events left over from a previous run, this does disk I/O.
+     *
+     * @param enabled true to persist queued events, false to keep them in memory only
+     * @return this tracker for chaining
+     */
+    public Tracker setPersistentQueue(boolean enabled) {
+        if (!enabled) {
+            mDispatcher.setDiskQueue(null);
+            mDispatcher.setDiskQueue(Priority.HIGH, null);
+            return this;
+        }
+        try {
+            if (mDispatcher.getDiskQueue(Priority.HIGH) == null)
+                mDispatcher.setDiskQueue(Priority.HIGH, new EventDiskQueue(new File(getQueueDirectory().getPath() + HIGH_PRIORITY_SUFFIX)));
+            if (mDispatcher.getDiskQueue() == null)
+                mDispatcher.setDiskQueue(new EventDiskQueue(getQueueDirectory()));
+        } catch (IOException e) {
+            Logy.w(LOGGER_TAG, "Cannot open persistent queue, events stay in memory", e);
+        }
+        return this;
+    }
+
+    /**
+     * @return true if queued events are kept on disk
+     */
+    public boolean isPersistentQueue() {
+        return mDispatcher.getDiskQueue() != null;
+    }
+
+    /**
+     * Bounds the memory used by events that wait to be sent, see {@link Dispatcher#setMaxQueueSize(int)}.
+     * With {@link OverflowPolicy#SPILL_TO_DISK} events beyond the limit go to a queue in the app's files.
+     *
+     * @param maxEvents how many events may wait in memory
+     * @param policy    what to do with events beyond that
+     * @return this tracker for chaining
+     */
+    public Tracker setQueueLimit(int maxEvents, @NonNull OverflowPolicy policy) {
+        mDispatcher.setMaxQueueSize(maxEvents);
+        mDispatcher.setOverflowPolicy(policy);
+        if (policy != OverflowPolicy.SPILL_TO_DISK) {
+            mDispatcher.setSpillQueue(null);
+        } else if (mDispatcher.getSpillQueue() == null) {
+            try {
+                mDispatcher.setSpillQueue(new EventDiskQueue(new File(getQueueDirectory().getPath() + SPILL_SUFFIX)));
+            } catch (IOException e) {
+                Logy.w(LOGGER_TAG, "Cannot open spill queue, dropping the oldest events instead", e);
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Each tracker (site and API url) gets its own queue directory.
+     */
+    protected File getQueueDirectory() {
+        String name = mSiteId + "_" + Integer.toHexString(mApiUrl.toExternalForm().hashCode());
+        return new File(new File(mPiwik.getContext().getFilesDir(), QUEUE_DIRECTORY), name);
+    }
+
     /**
      * Defines the User ID for this request.
      * User ID is any non empty unique string identifying the user (such as an email address or a username).
@@ -220,6 +337,7 @@ public class Tracker {
      */
     public Tracker setUserId(String userId) {
         mDefaultTrackMe.set(QueryParams.USER_ID, userId);
+        invalidateDefaultParams();
         getSharedPreferences().edit().putString(PREF_KEY_TRACKER_USERID, userId).apply();
         return this;
     }
@@ -228,7 +346,7 @@ public class Tracker {
      * @return a user-id string, either the one you set or the one Piwik generated for you.
      */
     public String getUserId() {
-        return mDefaultTrackMe.get(QueryParams.USER_ID);
+        return mDefaultTrackMe.getSnapshot().get(QueryParams.USER_ID);
     }
 
     /**
@@ -237,13 +355,15 @@ public class Tracker {
      * If this value is not set Piwik will still track visits, but the unique visitors metric might be less accurate.
      */
     public Tracker setVisitorId(String visitorId) throws IllegalArgumentException {
-        if (confirmVisitorIdFormat(visitorId))
+        if (confirmVisitorIdFormat(visitorId)) {
             mDefaultTrackMe.set(QueryParams.VISITOR_ID, visitorId);
+            invalidateDefaultParams();
+        }
         return this;
     }
 
     public String getVisitorId() {
-        return mDefaultTrackMe.get(QueryParams.VISITOR_ID);
+        return mDefaultTrackMe.getSnapshot().get(QueryParams.VISITOR_ID);
     }
 
     private static final Pattern PATTERN_VISITOR_ID = Pattern.compile("^[0-9a-f]{16}$");
@@ -298,7 +418,7 @@ public class Tracker {
      * @return this tracker
      */
     public Tracker trackScreenView(String path, String title) {
-        return trackScreenView(new TrackMe(), path, title);
+        return trackScreenView(obtainTrackMe(), path, title);
     }
 
     /**
@@ -319,13 +439,13 @@ public class Tracker {
 
 
     public Tracker trackEvent(String category, String action) {
-        return track(new TrackMe()
+        return track(obtainTrackMe()
                 .set(QueryParams.EVENT_CATEGORY, category)
                 .set(QueryParams.EVENT_ACTION, action));
     }
 
     public Tracker trackEvent(String category, String action, String label) {
-        return track(new TrackMe()
+        return track(obtainTrackMe()
                 .set(QueryParams.EVENT_CATEGORY, category)
                 .set(QueryParams.EVENT_ACTION, action)
                 .set(QueryParams.EVENT_NAME, label));
@@ -348,7 +468,7 @@ public class Tracker {
      *                 button clicks, you might log the number of items being purchased, or their total cost.
      */
     public Tracker trackEvent(String category, String action, String label, float value) {
-        return track(new TrackMe()
+        return track(obtainTrackMe()
                 .set(QueryParams.EVENT_CATEGORY, category)
                 .set(QueryParams.EVENT_ACTION, action)
                 .set(QueryParams.EVENT_NAME, label)
@@ -356,6 +476,23 @@ public class Tracker {
 
     }
 
+    /**
+     * For events that are tracked often with the same category, action and name.
+     * The template keeps them encoded, so each {@link EventTemplate#fire(float)} does less work than {@link #trackEvent(String, String, String, float)}.
+     *
+     * @param category (required) see {@link #trackEvent(String, String, String, float)}
+     * @param action   (required) see {@link #trackEvent(String, String, String, float)}
+     * @param label    optional, see {@link #trackEvent(String, String, String, float)}
+     * @return a template that tracks with this tracker
+     */
+    public EventTemplate prepare(String category, String action, @Nullable String label) {
+        return new EventTemplate(this, category, action, label);
+    }
+
+    public EventTemplate prepare(String category, String action) {
+        return prepare(category, action, null);
+    }
+
     /**
      * By default, Goals in Piwik are defined as "matching" parts of the screen path or screen title.
      * In this case a conversion is logged automatically. In some situations, you may want to trigger
@@ -369,7 +506,7 @@ public class Tracker {
     public Tracker trackGoal(int idGoal) {
         if (idGoal < 0)
             return this;
-        return track(new TrackMe().set(QueryParams.GOAL_ID, idGoal));
+        return track(obtainTrackMe().set(QueryParams.GOAL_ID, idGoal));
     }
 
     /**
@@ -381,7 +518,7 @@ public class Tracker {
     public Tracker trackGoal(int idGoal, float revenue) {
         if (idGoal < 0)
             return this;
-        return track(new TrackMe()
+        return track(obtainTrackMe()
                 .set(QueryParams.GOAL_ID, idGoal)
                 .set(QueryParams.REVENUE, revenue));
     }
@@ -394,7 +531,7 @@ public class Tracker {
      */
     public Tracker trackOutlink(URL url) {
         if (url.getProtocol().equals("http") || url.getProtocol().equals("https") || url.getProtocol().equals("ftp")) {
-            return track(new TrackMe()
+            return track(obtainTrackMe()
                     .set(QueryParams.LINK, url.toExternalForm())
                     .set(QueryParams.URL_PATH, url.toExternalForm()));
         }
@@ -483,7 +620,7 @@ public class Tracker {
             }
             installationIdentifier.append("/").append(extraIdentifier);
 
-            return track(new TrackMe()
+            return track(obtainTrackMe()
                     .set(QueryParams.EVENT_CATEGORY, "Application")
                     .set(QueryParams.EVENT_ACTION, "downloaded")
                     .set(QueryParams.ACTION_NAME, "application/downloaded")
@@ -506,7 +643,7 @@ public class Tracker {
     public Tracker trackContentImpression(String contentName, String contentPiece, String contentTarget) {
         if (contentName == null || contentName.length() < 1)
             return this;
-        return track(new TrackMe()
+        return track(obtainTrackMe()
                 .set(QueryParams.CONTENT_NAME, contentName)
                 .set(QueryParams.CONTENT_PIECE, contentPiece)
                 .set(QueryParams.CONTENT_TARGET, contentTarget));
@@ -523,7 +660,7 @@ public class Tracker {
     public Tracker trackContentInteraction(String interaction, String contentName, String contentPiece, String contentTarget) {
         if (contentName == null || contentName.length() < 1 || interaction == null || interaction.length() < 1)
             return this;
-        return track(new TrackMe()
+        return track(obtainTrackMe()
                 .set(QueryParams.CONTENT_NAME, contentName)
                 .set(QueryParams.CONTENT_PIECE, contentPiece)
                 .set(QueryParams.CONTENT_TARGET, contentTarget)
@@ -542,7 +679,7 @@ public class Tracker {
             items = new EcommerceItems();
         }
 
-        track(new TrackMe()
+        track(obtainTrackMe()
                 .set(QueryParams.GOAL_ID, 0)
                 .set(QueryParams.REVENUE, CurrencyFormatter.priceString(grandTotal))
                 .set(QueryParams.ECOMMERCE_ITEMS, items.toJson()));
@@ -566,7 +703,7 @@ public class Tracker {
             items = new EcommerceItems();
         }
 
-        TrackMe trackMe = new TrackMe()
+        TrackMe trackMe = obtainTrackMe()
                 .set(QueryParams.GOAL_ID, 0)
                 .set(QueryParams.ORDER_ID, orderId)
                 .set(QueryParams.REVENUE, CurrencyFormatter.priceString(grandTotal))
@@ -587,6 +724,8 @@ public class Tracker {
         if (discount != null) {
             trackMe.set(QueryParams.DISCOUNT, CurrencyFormatter.priceString(discount));
         }
+        // Orders are worth more than anything else we track, send them before queued screen views
+        trackMe.setPriority(Priority.HIGH);
         track(trackMe);
     }
 
@@ -596,6 +735,7 @@ public class Tracker {
      * <p/>
      * This is just a different way to define an event.
      * Keep in mind Piwik is not a crash tracker, use this sparingly.
+     * Exceptions are sent with {@link Priority#HIGH}, ahead of queued events.
      * <p/>
      * For this to be useful you should ensure that proguard does not remove all classnames and line numbers.
      * Also note that if this is used across different app versions and obfuscation is used, the same exception might be mapped to different obfuscated names by proguard.
@@ -615,12 +755,13 @@ public class Tracker {
             className = ex.getClass().getName();
         }
         String actionName = "exception/" + (isFatal ? "fatal/" : "") + (className + "/") + description;
-        track(new TrackMe()
+        track(obtainTrackMe()
                 .set(QueryParams.ACTION_NAME, actionName)
                 .set(QueryParams.EVENT_CATEGORY, "Exception")
                 .set(QueryParams.EVENT_ACTION, className)
                 .set(QueryParams.EVENT_NAME, description)
-                .set(QueryParams.EVENT_VALUE, isFatal ? 1 : 0));
+                .set(QueryParams.EVENT_VALUE, isFatal ? 1 : 0)
+                .setPriority(Priority.HIGH));
     }
 
     /**
@@ -657,35 +798,66 @@ public class Tracker {
         if (previousVisit != -1)
             mDefaultTrackMe.trySet(QueryParams.PREVIOUS_VISIT_TIMESTAMP, previousVisit);
 
-        trackMe.trySet(QueryParams.SESSION_START, mDefaultTrackMe.get(QueryParams.SESSION_START));
-        trackMe.trySet(QueryParams.SCREEN_RESOLUTION, mDefaultTrackMe.get(QueryParams.SCREEN_RESOLUTION));
-        trackMe.trySet(QueryParams.USER_AGENT, mDefaultTrackMe.get(QueryParams.USER_AGENT));
-        trackMe.trySet(QueryParams.LANGUAGE, mDefaultTrackMe.get(QueryParams.LANGUAGE));
-        trackMe.trySet(QueryParams.COUNTRY, mDefaultTrackMe.get(QueryParams.COUNTRY));
-        trackMe.trySet(QueryParams.FIRST_VISIT_TIMESTAMP, mDefaultTrackMe.get(QueryParams.FIRST_VISIT_TIMESTAMP));
-        trackMe.trySet(QueryParams.TOTAL_NUMBER_OF_VISITS, mDefaultTrackMe.get(QueryParams.TOTAL_NUMBER_OF_VISITS));
-        trackMe.trySet(QueryParams.PREVIOUS_VISIT_TIMESTAMP, mDefaultTrackMe.get(QueryParams.PREVIOUS_VISIT_TIMESTAMP));
+        DefaultTrackMe.Snapshot defaults = mDefaultTrackMe.getSnapshot();
+        trackMe.trySet(QueryParams.SESSION_START, defaults.get(QueryParams.SESSION_START));
+        trackMe.trySet(QueryParams.SCREEN_RESOLUTION, defaults.get(QueryParams.SCREEN_RESOLUTION));
+        trackMe.trySet(QueryParams.USER_AGENT, defaults.get(QueryParams.USER_AGENT));
+        trackMe.trySet(QueryParams.LANGUAGE, defaults.get(QueryParams.LANGUAGE));
+        trackMe.trySet(QueryParams.COUNTRY, defaults.get(QueryParams.COUNTRY));
+        trackMe.trySet(QueryParams.FIRST_VISIT_TIMESTAMP, defaults.get(QueryParams.FIRST_VISIT_TIMESTAMP));
+        trackMe.trySet(QueryParams.TOTAL_NUMBER_OF_VISITS, defaults.get(QueryParams.TOTAL_NUMBER_OF_VISITS));
+        trackMe.trySet(QueryParams.PREVIOUS_VISIT_TIMESTAMP, defaults.get(QueryParams.PREVIOUS_VISIT_TIMESTAMP));
     }
 
     /**
-     * These parameters are required for all queries.
+     * These parameters are required for all queries and only change with the visitor, see {@link DefaultParams}.
      */
-    private void injectBaseParams(TrackMe trackMe) {
-        trackMe.trySet(QueryParams.SITE_ID, mSiteId);
-        trackMe.trySet(QueryParams.RECORD, DEFAULT_RECORD_VALUE);
-        trackMe.trySet(QueryParams.API_VERSION, DEFAULT_API_VERSION_VALUE);
-        trackMe.trySet(QueryParams.RANDOM_NUMBER, mRandomAntiCachingValue.nextInt(100000));
-        trackMe.trySet(QueryParams.DATETIME_OF_REQUEST, new SimpleDateFormat("yyyy-MM-dd HH:mm:ssZ").format(new Date()));
-        trackMe.trySet(QueryParams.SEND_IMAGE, "0");
+    private void injectDefaultParams(TrackMe trackMe, DefaultParams defaults) {
+        for (int i = 0; i < DefaultParams.PARAMS.length; i++) {
+            String value = defaults.getValue(i);
+            if (value != null)
+                trackMe.trySet(DefaultParams.PARAMS[i], value);
+        }
+    }
 
-        trackMe.trySet(QueryParams.VISITOR_ID, mDefaultTrackMe.get(QueryParams.VISITOR_ID));
-        trackMe.trySet(QueryParams.USER_ID, mDefaultTrackMe.get(QueryParams.USER_ID));
+    /**
+     * Built once and reused until a default changes.
+     */
+    @VisibleForTesting
+    DefaultParams getDefaultParams() {
+        int version = mDefaultsVersion.get();
+        // One consistent view of the defaults, read without locking
+        DefaultTrackMe.Snapshot snapshot = mDefaultTrackMe.getSnapshot();
+        String visitorId = snapshot.get(QueryParams.VISITOR_ID);
+        String userId = snapshot.get(QueryParams.USER_ID);
+        DefaultParams defaults = mDefaultParams;
+        // The ids are compared by reference, that also catches changes made through getDefaultTrackMe()
+        if (defaults != null && defaults.getVersion() == version
+                && defaults.getValue(DefaultParams.VISITOR_ID_INDEX) == visitorId && defaults.getValue(DefaultParams.USER_ID_INDEX) == userId)
+            return defaults;
+        defaults = new DefaultParams(version, new String[]{
+                Integer.toString(mSiteId), DEFAULT_RECORD_VALUE, DEFAULT_API_VERSION_VALUE, "0",
+                visitorId, userId, mVisitCustomVariable.toString()
+        });
+        mDefaultParams = defaults;
+        return defaults;
+    }
 
-        trackMe.trySet(QueryParams.VISIT_SCOPE_CUSTOM_VARIABLES, mVisitCustomVariable.toString());
+    private void invalidateDefaultParams() {
+        mDefaultsVersion.incrementAndGet();
+    }
+
+    /**
+     * These parameters are different for every query.
+     */
+    private void injectEventParams(TrackMe trackMe) {
+        trackMe.trySet(QueryParams.RANDOM_NUMBER, mRandomAntiCachingValue.nextInt(100000));
+        if (!trackMe.has(QueryParams.DATETIME_OF_REQUEST))
+            trackMe.set(QueryParams.DATETIME_OF_REQUEST, mDateTimeCache.format(System.currentTimeMillis()));
 
         String urlPath = trackMe.get(QueryParams.URL_PATH);
         if (urlPath == null) {
-            urlPath = getApplicationBaseURL() + "/";
+            urlPath = getApplicationRootURL();
         } else if (urlPath.startsWith("/")) {
             urlPath = getApplicationBaseURL() + urlPath;
         } else if (urlPath.startsWith("http://") || urlPath.startsWith("https://") || urlPath.startsWith("ftp://")) {
@@ -699,6 +871,43 @@ public class Tracker {
     private CountDownLatch mSessionStartLatch = new CountDownLatch(0);
 
     public Tracker track(TrackMe trackMe) {
+        try {
+            return trackInternal(trackMe);
+        } finally {
+            TrackMePool pool = mTrackMePool;
+            if (pool != null)
+                pool.release(trackMe);
+        }
+    }
+
+    private Tracker trackInternal(TrackMe trackMe) {
+        // Before anything else, a dropped event should neither cost work nor start a session
+        Sampling sampling = mSampling;
+        if (sampling != null) {
+            String visitorId = trackMe.get(QueryParams.VISITOR_ID);
+            if (!sampling.sample(trackMe, visitorId != null ? visitorId : mDefaultTrackMe.getSnapshot().get(QueryParams.VISITOR_ID))) {
+                Logy.d(Tracker.LOGGER_TAG, "Event sampled out.");
+                return this;
+            }
+        }
+        RateLimiter rateLimiter = mRateLimiter;
+        if (rateLimiter != null) {
+            if (!rateLimiter.tryAcquire(trackMe)) {
+                Logy.d(Tracker.LOGGER_TAG, "Event rejected by the rate limiter.");
+                return this;
+            }
+            // The latest event of a rejected burst goes first, so the order is kept
+            TrackMe coalesced = rateLimiter.pollCoalesced(trackMe);
+            if (coalesced != null)
+                submitAccepted(coalesced);
+        }
+        return submitAccepted(trackMe);
+    }
+
+    /**
+     * The rest of {@link #trackInternal(TrackMe)} for an event that passed sampling and the rate limiter.
+     */
+    private Tracker submitAccepted(TrackMe trackMe) {
         boolean newSession;
         synchronized (mSessionLock) {
             newSession = tryNewSession();
@@ -716,14 +925,21 @@ public class Tracker {
             }
         }
 
-        injectBaseParams(trackMe);
-        String event = trackMe.build();
-        if (mPiwik.isOptOut()) {
+        DefaultParams defaults = getDefaultParams();
+        injectDefaultParams(trackMe, defaults);
+        injectEventParams(trackMe);
+        trackMe = intercept(trackMe);
+        if (trackMe == null) {
+            Logy.d(Tracker.LOGGER_TAG, "Event dropped by an interceptor.");
+        } else if (mPiwik.isOptOut()) {
+            String event = trackMe.build(defaults);
             mLastEvent = event;
-            Logy.d(Tracker.LOGGER_TAG, String.format("URL omitted due to opt out: %s", event));
+            Logy.d(Tracker.LOGGER_TAG, "URL omitted due to opt out: %s", event);
         } else {
-            Logy.d(Tracker.LOGGER_TAG, String.format("URL added to the queue: %s", event));
-            mDispatcher.submit(event);
+            // Queued in compact form, percent encoding waits until the event is sent
+            CompactQuery event = trackMe.buildCompact(defaults);
+            Logy.d(Tracker.LOGGER_TAG, "URL added to the queue: %s", event);
+            mDispatcher.submit(event, trackMe.getPriority());
         }
 
         // we did a first transmission, let the other through.
@@ -733,6 +949,104 @@ public class Tracker {
         return this;
     }
 
+    @Nullable
+    private TrackMe intercept(TrackMe trackMe) {
+        final EventInterceptor[] interceptors = mInterceptors;
+        // Interceptors may keep a reference, so it must not be reused for another event
+        if (interceptors.length > 0)
+            TrackMePool.detach(trackMe);
+        for (int i = 0; i < interceptors.length && trackMe != null; i++)
+            trackMe = interceptors[i].intercept(this, trackMe);
+        return trackMe;
+    }
+
+    /**
+     * Lets the convenience methods like {@link #trackEvent(String, String)} reuse their TrackMe objects
+     * instead of creating a new one per event, which takes pressure off the garbage collector when tracking at a high rate.
+     * TrackMe objects passed to {@link #track(TrackMe)} by you are never reused.
+     *
+     * @param size how many unused TrackMe objects to keep, 0 disables pooling (default)
+     * @return this tracker for chaining
+     */
+    public Tracker setTrackMePoolSize(int size) {
+        mTrackMePool = size > 0 ? new TrackMePool(size) : null;
+        return this;
+    }
+
+    public int getTrackMePoolSize() {
+        TrackMePool pool = mTrackMePool;
+        return pool != null ? pool.getCapacity() : 0;
+    }
+
+    /**
+     * @return a TrackMe from the pool if pooling is enabled, a new one otherwise
+     */
+    TrackMe obtainTrackMe() {
+        TrackMePool pool = mTrackMePool;
+        return pool != null ? pool.obtain() : new TrackMe();
+    }
+
+    @VisibleForTesting
+    TrackMePool getTrackMePool() {
+        return mTrackMePool;
+    }
+
+    /**
+     * Drops a share of the events, decided per visitor, before any work is done for them.
+     *
+     * @param sampling the rates to apply or null to track everything
+     * @return this tracker for chaining
+     */
+    public Tracker setSampling(@Nullable Sampling sampling) {
+        mSampling = sampling;
+        return this;
+    }
+
+    @Nullable
+    public Sampling getSampling() {
+        return mSampling;
+    }
+
+    /**
+     * Rejects events beyond the given rate before any work is done for them, see {@link RateLimiter}.
+     *
+     * @param rateLimiter the limiter to apply or null for no limit
+     * @return this tracker for chaining
+     */
+    public Tracker setRateLimiter(@Nullable RateLimiter rateLimiter) {
+        mRateLimiter = rateLimiter;
+        return this;
+    }
+
+    @Nullable
+    public RateLimiter getRateLimiter() {
+        return mRateLimiter;
+    }
+
+    /**
+     * Adds an interceptor to the end of the chain, see {@link EventInterceptor}.
+     *
+     * @param interceptor the interceptor to add
+     * @return this tracker for chaining
+     */
+    public synchronized Tracker addInterceptor(@NonNull EventInterceptor interceptor) {
+        EventInterceptor[] interceptors = Arrays.copyOf(mInterceptors, mInterceptors.length + 1);
+        interceptors[interceptors.length - 1] = interceptor;
+        mInterceptors = interceptors;
+        return this;
+    }
+
+    /**
+     * @param interceptor a previously added interceptor
+     * @return this tracker for chaining
+     */
+    public synchronized Tracker removeInterceptor(@NonNull EventInterceptor interceptor) {
+        List<EventInterceptor> interceptors = new ArrayList<>(Arrays.asList(mInterceptors));
+        if (interceptors.remove(interceptor))
+            mInterceptors = interceptors.toArray(new EventInterceptor[interceptors.size()]);
+        return this;
+    }
+
     public static String makeRandomVisitorId() {
         return UUID.randomUUID().toString().replaceAll("-", "").substring(0, 16);
     }
@@ -754,6 +1068,7 @@ public class Tracker {
      */
     public Tracker setVisitCustomVariable(int index, String name, String value) {
         mVisitCustomVariable.put(index, name, value);
+        invalidateDefaultParams();
         return this;
     }
 
@@ -777,7 +1092,33 @@ public class Tracker {
     }
 
     protected String getApplicationBaseURL() {
-        return String.format("http://%s", getApplicationDomain());
+        return getApplicationURLs()[1];
+    }
+
+    /**
+     * @return the base URL with a trailing slash, used for events without a path
+     */
+    private String getApplicationRootURL() {
+        String[] urls = getApplicationURLs();
+        // Subclasses may build the base URL differently
+        String baseURL = getApplicationBaseURL();
+        return baseURL == urls[1] ? urls[2] : baseURL + "/";
+    }
+
+    /**
+     * Every event needs these, so they are only built again when the domain changes.
+     *
+     * @return {domain, "http://domain", "http://domain/"}
+     */
+    private String[] getApplicationURLs() {
+        String domain = getApplicationDomain();
+        String[] urls = mApplicationURLs;
+        if (urls == null || (domain == null ? urls[0] != null : !domain.equals(urls[0]))) {
+            String baseURL = String.format("http://%s", domain);
+            urls = new String[]{domain, baseURL, baseURL + "/"};
+            mApplicationURLs = urls;
+        }
+        return urls;
     }
 
     /**
@@ -793,7 +1134,12 @@ public class Tracker {
         mLastEvent = null;
     }
 
-    protected Dispatcher getDispatcher() {
+    /**
+     * For advanced configuration of how and when queued events are sent.
+     *
+     * @return the dispatcher used by this tracker
+     */
+    public Dispatcher getDispatcher() {
         return mDispatcher;
     }
 }
@@ -25,23 +25,43 @@ import java.util.List;
 public class TrackerBulkURLWrapper {
     private static final String LOGGER_TAG = Piwik.LOGGER_PREFIX + "TrackerBulkURLWrapper";
     private static final int EVENTS_PER_PAGE = 20;
-    private int mCurrentPage = 0;
-    private final int mPages;
+    // Quotes and separator around each query in the json body
+    private static final int EVENT_OVERHEAD_BYTES = 3;
+    private int mCurrentIndex = 0;
+    private int mMaxEventsPerPage;
+    private int mMaxBytesPerPage;
     private final URL mApiUrl;
     private final String mAuthtoken;
     private final List<String> mEvents;
 
     public TrackerBulkURLWrapper(@NonNull final URL apiUrl, @NonNull final List<String> events, @Nullable final String authToken) {
+        this(apiUrl, events, authToken, EVENTS_PER_PAGE, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param maxEventsPerPage a page holds at most this many events
+     * @param maxBytesPerPage  a page is cut before its events exceed this size, but always holds at least one event
+     */
+    public TrackerBulkURLWrapper(@NonNull final URL apiUrl, @NonNull final List<String> events, @Nullable final String authToken, int maxEventsPerPage, int maxBytesPerPage) {
         mApiUrl = apiUrl;
         mAuthtoken = authToken;
-        mPages = (int) Math.ceil(events.size() * 1.0 / EVENTS_PER_PAGE);
         mEvents = events;
+        setPageLimits(maxEventsPerPage, maxBytesPerPage);
     }
 
     protected static int getEventsPerPage() {
         return EVENTS_PER_PAGE;
     }
 
+    /**
+     * Pages are cut one by one as the iterator hands them out,
+     * new limits apply to all pages that haven't been returned yet.
+     */
+    public void setPageLimits(int maxEventsPerPage, int maxBytesPerPage) {
+        mMaxEventsPerPage = Math.max(1, maxEventsPerPage);
+        mMaxBytesPerPage = maxBytesPerPage;
+    }
+
     /**
      * page iterator
      *
@@ -51,13 +71,15 @@ public class TrackerBulkURLWrapper {
         return new Iterator<Page>() {
             @Override
             public boolean hasNext() {
-                return mCurrentPage < mPages;
+                return mCurrentIndex < mEvents.size();
             }
 
             @Override
             public Page next() {
                 if (hasNext()) {
-                    return new Page(mCurrentPage++);
+                    Page page = new Page(mCurrentIndex);
+                    mCurrentIndex = page.toIndex;
+                    return page;
                 }
                 return null;
             }
@@ -110,6 +132,23 @@ public class TrackerBulkURLWrapper {
         return params;
     }
 
+    /**
+     * Same as {@link #getEvents(Page)}, but without building a json object.
+     *
+     * @return a view of the queries on this page or null if the page is empty
+     */
+    @Nullable
+    public List<String> getRequests(Page page) {
+        if (page == null || page.isEmpty())
+            return null;
+        return mEvents.subList(page.fromIndex, page.toIndex);
+    }
+
+    @Nullable
+    public String getAuthToken() {
+        return mAuthtoken;
+    }
+
     /**
      * @param page Page object
      * @return tracked url. For example
@@ -131,14 +170,27 @@ public class TrackerBulkURLWrapper {
     public final class Page {
 
         protected final int fromIndex, toIndex;
+        private final int mByteCount;
 
-        protected Page(int pageNumber) {
-            if (!(pageNumber >= 0 || pageNumber < mPages)) {
-                fromIndex = toIndex = -1;
+        protected Page(int fromIndex) {
+            if (fromIndex < 0 || fromIndex >= mEvents.size()) {
+                this.fromIndex = toIndex = -1;
+                mByteCount = 0;
                 return;
             }
-            fromIndex = pageNumber * EVENTS_PER_PAGE;
-            toIndex = Math.min(fromIndex + EVENTS_PER_PAGE, mEvents.size());
+            int index = fromIndex;
+            int byteCount = 0;
+            while (index < mEvents.size() && index - fromIndex < mMaxEventsPerPage) {
+                // Queries are url encoded, so their length is their size in bytes
+                int eventBytes = mEvents.get(index).length() + EVENT_OVERHEAD_BYTES;
+                if (index > fromIndex && byteCount + eventBytes > mMaxBytesPerPage)
+                    break;
+                byteCount += eventBytes;
+                index++;
+            }
+            this.fromIndex = fromIndex;
+            toIndex = index;
+            mByteCount = byteCount;
         }
 
         public int elementsCount() {
@@ -148,6 +200,13 @@ public class TrackerBulkURLWrapper {
         public boolean isEmpty() {
             return fromIndex == -1 || elementsCount() == 0;
         }
+
+        /**
+         * @return the approximate size of this page's requests in bytes
+         */
+        public int getByteCount() {
+            return mByteCount;
+        }
     }
 
 }
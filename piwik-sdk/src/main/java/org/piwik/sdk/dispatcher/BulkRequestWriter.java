@@ -0,0 +1,200 @@
+/*
+ * Android SDK for Piwik
+ *
+ * @link https://github.com/piwik/piwik-android-sdk
+ * @license https://github.com/piwik/piwik-sdk-android/blob/master/LICENSE BSD-3 Clause
+ */
+package org.piwik.sdk.dispatcher;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+/**
+ * Streams the bulk tracking body
+ * <p/>
+ * {"requests":["?idsite=1&rec=1...","?idsite=1&rec=1..."],"token_auth":"..."}
+ * <p/>
+ * as UTF-8 straight into an {@link OutputStream}, without building a json tree or the body as one String first.
+ * The instance reuses one fixed buffer and is not threadsafe.
+ */
+public class BulkRequestWriter {
+    private static final int BUFFER_SIZE = 8 * 1024;
+    // Worst case for one char: \\uXXXX
+    private static final int MAX_BYTES_PER_CHAR = 6;
+    private static final byte[] HEX = {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'};
+    private static final byte[] REQUESTS_PREFIX = {'{', '"', 'r', 'e', 'q', 'u', 'e', 's', 't', 's', '"', ':', '['};
+    private static final byte[] TOKEN_PREFIX = {',', '"', 't', 'o', 'k', 'e', 'n', '_', 'a', 'u', 't', 'h', '"', ':'};
+
+    private final byte[] mBuffer = new byte[BUFFER_SIZE];
+    private int mPosition;
+    private int mWritten;
+    private OutputStream mOut;
+
+    /**
+     * @param out       the stream receiving the body, it is not flushed or closed
+     * @param requests  the queries of this page
+     * @param authToken optional auth token
+     * @return the number of bytes written
+     */
+    public int write(@NonNull OutputStream out, @NonNull List<String> requests, @Nullable String authToken) throws IOException {
+        begin(out);
+        try {
+            writeBytes(REQUESTS_PREFIX);
+            for (int i = 0; i < requests.size(); i++) {
+                if (i > 0)
+                    writeByte(',');
+                writeString(requests.get(i), true);
+            }
+            writeByte(']');
+            if (authToken != null) {
+                writeBytes(TOKEN_PREFIX);
+                writeString(authToken, true);
+            }
+            writeByte('}');
+            flushBuffer();
+            return mWritten;
+        } finally {
+            mOut = null;
+        }
+    }
+
+    /**
+     * Writes an already serialized json body as UTF-8.
+     *
+     * @return the number of bytes written
+     */
+    public int write(@NonNull OutputStream out, @NonNull String json) throws IOException {
+        begin(out);
+        try {
+            writeString(json, false);
+            flushBuffer();
+            return mWritten;
+        } finally {
+            mOut = null;
+        }
+    }
+
+    /**
+     * @return the exact number of bytes {@link #write(OutputStream, List, String)} would produce
+     */
+    public static int measure(@NonNull List<String> requests, @Nullable String authToken) {
+        int length = REQUESTS_PREFIX.length;
+        for (int i = 0; i < requests.size(); i++) {
+            if (i > 0)
+                length++;
+            length += encodedLength(requests.get(i), true);
+        }
+        length++;
+        if (authToken != null)
+            length += TOKEN_PREFIX.length + encodedLength(authToken, true);
+        return length + 1;
+    }
+
+    /**
+     * @return the exact number of bytes {@link #write(OutputStream, String)} would produce
+     */
+    public static int measure(@NonNull String json) {
+        return encodedLength(json, false);
+    }
+
+    private static int encodedLength(String value, boolean quoted) {
+        int length = quoted ? 2 : 0;
+        final int count = value.length();
+        for (int i = 0; i < count; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                if (quoted && (c == '"' || c == '\\'))
+                    length += 2;
+                else if (quoted && c < 0x20)
+                    length += 6;
+                else
+                    length += 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < count && Character.isLowSurrogate(value.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+                length += 1;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    private void begin(OutputStream out) {
+        mOut = out;
+        mPosition = 0;
+        mWritten = 0;
+    }
+
+    private void writeBytes(byte[] bytes) throws IOException {
+        for (byte b : bytes)
+            writeByte(b);
+    }
+
+    private void writeByte(int b) throws IOException {
+        if (mPosition == BUFFER_SIZE)
+            flushBuffer();
+        mBuffer[mPosition++] = (byte) b;
+    }
+
+    private void flushBuffer() throws IOException {
+        mOut.write(mBuffer, 0, mPosition);
+        mWritten += mPosition;
+        mPosition = 0;
+    }
+
+    /**
+     * UTF-8 encodes the string into the buffer, optionally as a quoted and escaped json string.
+     * Unpaired surrogates become '?', just like {@link String#getBytes(String)} does it.
+     */
+    private void writeString(String value, boolean quoted) throws IOException {
+        if (quoted)
+            writeByte('"');
+        final int length = value.length();
+        for (int i = 0; i < length; i++) {
+            if (mPosition > BUFFER_SIZE - MAX_BYTES_PER_CHAR)
+                flushBuffer();
+            final byte[] buffer = mBuffer;
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                if (quoted && (c == '"' || c == '\\')) {
+                    buffer[mPosition++] = '\\';
+                    buffer[mPosition++] = (byte) c;
+                } else if (quoted && c < 0x20) {
+                    buffer[mPosition++] = '\\';
+                    buffer[mPosition++] = 'u';
+                    buffer[mPosition++] = '0';
+                    buffer[mPosition++] = '0';
+                    buffer[mPosition++] = HEX[c >> 4];
+                    buffer[mPosition++] = HEX[c & 0xF];
+                } else {
+                    buffer[mPosition++] = (byte) c;
+                }
+            } else if (c < 0x800) {
+                buffer[mPosition++] = (byte) (0xC0 | (c >> 6));
+                buffer[mPosition++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                buffer[mPosition++] = (byte) (0xF0 | (codePoint >> 18));
+                buffer[mPosition++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                buffer[mPosition++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                buffer[mPosition++] = (byte) (0x80 | (codePoint & 0x3F));
+            } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+                buffer[mPosition++] = '?';
+            } else {
+                buffer[mPosition++] = (byte) (0xE0 | (c >> 12));
+                buffer[mPosition++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                buffer[mPosition++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        if (quoted)
+            writeByte('"');
+    }
+}
@@ -0,0 +1,307 @@
+/*
+ * Android SDK for Piwik
+ *
+ * @link https://github.com/piwik/piwik-android-sdk
+ * @license https://github.com/piwik/piwik-sdk-android/blob/master/LICENSE BSD-3 Clause
+ */
+
+package org.piwik.sdk.dispatcher;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.piwik.sdk.QueryParams;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+
+/**
+ * Binary form of a query for events that wait in the dispatch queue or on disk.
+ * <p/>
+ * Each parameter is a varint key followed by the varint length of the value and the value as raw UTF-8.
+ * Known keys are stored as {@link QueryParams} ordinal + 1, 0 means the key name follows like a value.
+ * That avoids the parameter names and the percent encoding, which roughly triples non ASCII values,
+ * the query String is only built when the event is sent, see {@link #toQuery()}.
+ * <p/>
+ * Immutable.
+ */
+public final class CompactQuery {
+    /**
+     * First byte of {@link #getBytes()}, a percent encoded query never starts with it.
+     */
+    static final byte MAGIC = 0;
+    private static final QueryParams[] PARAMS = QueryParams.values();
+
+    private final byte[] mData;
+
+    private CompactQuery(byte[] data) {
+        mData = data;
+    }
+
+    /**
+     * @param data as returned by {@link #getBytes()}
+     * @return null if data is not a compact query
+     */
+    @Nullable
+    static CompactQuery fromBytes(@NonNull byte[] data) {
+        if (data.length == 0 || data[0] != MAGIC)
+            return null;
+        return new CompactQuery(data);
+    }
+
+    /**
+     * @return the serialized form, don't modify it
+     */
+    @NonNull
+    byte[] getBytes() {
+        return mData;
+    }
+
+    /**
+     * @return the size of the serialized form
+     */
+    public int getByteCount() {
+        return mData.length;
+    }
+
+    /**
+     * @return the raw value of the parameter or null if it's not set
+     */
+    @Nullable
+    public String get(@NonNull QueryParams key) {
+        final byte[] data = mData;
+        final int wanted = key.ordinal() + 1;
+        int pos = 1;
+        while (pos < data.length) {
+            long header = readVarint(data, pos);
+            int id = (int) header;
+            pos = (int) (header >>> 32);
+            if (id == 0)
+                pos = skipValue(data, pos);
+            long length = readVarint(data, pos);
+            int valueStart = (int) (length >>> 32);
+            if (id == wanted)
+                return decodeUTF8(data, valueStart, (int) length);
+            pos = valueStart + (int) length;
+        }
+        return null;
+    }
+
+    /**
+     * @return the percent encoded query, e.g. "?idsite=1&rec=1&url=...", "" if there are no parameters
+     */
+    @NonNull
+    public String toQuery() {
+        final byte[] data = mData;
+        if (data.length <= 1)
+            return "";
+        StringBuilder sb = new StringBuilder(data.length * 2);
+        int pos = 1;
+        while (pos < data.length) {
+            sb.append(pos == 1 ? '?' : '&');
+            long header = readVarint(data, pos);
+            int id = (int) header;
+            pos = (int) (header >>> 32);
+            if (id == 0) {
+                long length = readVarint(data, pos);
+                int keyStart = (int) (length >>> 32);
+                PercentEncoder.encode(sb, data, keyStart, (int) length);
+                pos = keyStart + (int) length;
+            } else {
+                sb.append(PARAMS[id - 1].toString());
+            }
+            sb.append('=');
+            long length = readVarint(data, pos);
+            int valueStart = (int) (length >>> 32);
+            PercentEncoder.encode(sb, data, valueStart, (int) length);
+            pos = valueStart + (int) length;
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return this == o || o instanceof CompactQuery && Arrays.equals(mData, ((CompactQuery) o).mData);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(mData);
+    }
+
+    @Override
+    public String toString() {
+        return toQuery();
+    }
+
+    private static int skipValue(byte[] data, int pos) {
+        long length = readVarint(data, pos);
+        return (int) (length >>> 32) + (int) length;
+    }
+
+    /**
+     * @return the value in the lower and the position after it in the upper 32 bits
+     */
+    private static long readVarint(byte[] data, int pos) {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = data[pos++];
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        return ((long) pos << 32) | (value & 0xFFFFFFFFL);
+    }
+
+    private static String decodeUTF8(byte[] data, int offset, int length) {
+        try {
+            return new String(data, offset, length, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Collects the parameters of one query, not threadsafe.
+     * Parameters are kept in the order they are added.
+     */
+    public static final class Builder {
+        private byte[] mBuffer;
+        private int mSize = 1;
+
+        public Builder() {
+            this(256);
+        }
+
+        public Builder(int capacity) {
+            mBuffer = new byte[Math.max(capacity, 16)];
+            mBuffer[0] = MAGIC;
+        }
+
+        /**
+         * @param value null adds nothing
+         */
+        public Builder add(@NonNull QueryParams key, @Nullable String value) {
+            if (value == null)
+                return this;
+            writeVarint(key.ordinal() + 1);
+            writeString(value);
+            return this;
+        }
+
+        /**
+         * For parameters that have no {@link QueryParams} constant.
+         *
+         * @param value null adds nothing
+         */
+        public Builder add(@NonNull String key, @Nullable String value) {
+            if (value == null)
+                return this;
+            writeVarint(0);
+            writeString(key);
+            writeString(value);
+            return this;
+        }
+
+        /**
+         * Appends all parameters of an already built query, without encoding them again.
+         */
+        public Builder add(@NonNull CompactQuery query) {
+            final int length = query.mData.length - 1;
+            ensureCapacity(length);
+            System.arraycopy(query.mData, 1, mBuffer, mSize, length);
+            mSize += length;
+            return this;
+        }
+
+        public boolean isEmpty() {
+            return mSize <= 1;
+        }
+
+        /**
+         * The builder can be reused afterwards.
+         */
+        @NonNull
+        public CompactQuery build() {
+            CompactQuery query = new CompactQuery(Arrays.copyOf(mBuffer, mSize));
+            mSize = 1;
+            return query;
+        }
+
+        /**
+         * @return how many bytes the buffer holds, useful to decide whether to keep the builder around
+         */
+        public int getCapacity() {
+            return mBuffer.length;
+        }
+
+        private void ensureCapacity(int extra) {
+            if (mSize + extra > mBuffer.length)
+                mBuffer = Arrays.copyOf(mBuffer, Math.max(mBuffer.length * 2, mSize + extra));
+        }
+
+        private void writeVarint(int value) {
+            ensureCapacity(5);
+            while ((value & ~0x7F) != 0) {
+                mBuffer[mSize++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            mBuffer[mSize++] = (byte) value;
+        }
+
+        /**
+         * Writes the varint length and the UTF-8 bytes, unpaired surrogates become '?' like with {@link String#getBytes(String)}.
+         */
+        private void writeString(String value) {
+            final int length = value.length();
+            int utf8Length = length;
+            for (int i = 0; i < length; i++) {
+                char c = value.charAt(i);
+                if (c >= 0x800)
+                    utf8Length += 2;
+                else if (c >= 0x80)
+                    utf8Length += 1;
+            }
+            // Surrogates are counted as 3 bytes each, so this can only overestimate, corrected below
+            int lengthPos = mSize;
+            writeVarint(utf8Length);
+            ensureCapacity(utf8Length);
+            final byte[] buffer = mBuffer;
+            int pos = mSize;
+            for (int i = 0; i < length; i++) {
+                char c = value.charAt(i);
+                if (c < 0x80) {
+                    buffer[pos++] = (byte) c;
+                } else if (c < 0x800) {
+                    buffer[pos++] = (byte) (0xC0 | (c >> 6));
+                    buffer[pos++] = (byte) (0x80 | (c & 0x3F));
+                } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                    buffer[pos++] = (byte) (0xF0 | (codePoint >> 18));
+                    buffer[pos++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                    buffer[pos++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                    buffer[pos++] = (byte) (0x80 | (codePoint & 0x3F));
+                } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+                    buffer[pos++] = '?';
+                } else {
+                    buffer[pos++] = (byte) (0xE0 | (c >> 12));
+                    buffer[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                    buffer[pos++] = (byte) (0x80 | (c & 0x3F));
+                }
+            }
+            int written = pos - mSize;
+            if (written != utf8Length) {
+                // Rare, only with surrogates, rewrite the length in front of the bytes
+                byte[] bytes = Arrays.copyOfRange(buffer, mSize, pos);
+                mSize = lengthPos;
+                writeVarint(written);
+                ensureCapacity(written);
+                System.arraycopy(bytes, 0, mBuffer, mSize, written);
+                mSize += written;
+            } else {
+                mSize = pos;
+            }
+        }
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Android SDK for Piwik
+ *
+ * @link https://github.com/piwik/piwik-android-sdk
+ * @license https://github.com/piwik/piwik-sdk-android/blob/master/LICENSE BSD-3 Clause
+ */
+package org.piwik.sdk.dispatcher;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * Delegates to another factory and counts how many sockets were created.
+ * HttpURLConnection only asks for a new socket if it could not reuse a pooled connection,
+ * so this tells us how many TLS handshakes were needed.
+ */
+class CountingSSLSocketFactory extends SSLSocketFactory {
+    private final SSLSocketFactory mDelegate;
+    private final AtomicLong mCreated = new AtomicLong();
+
+    CountingSSLSocketFactory(SSLSocketFactory delegate) {
+        mDelegate = delegate;
+    }
+
+    SSLSocketFactory getDelegate() {
+        return mDelegate;
+    }
+
+    long getCreatedCount() {
+        return mCreated.get();
+    }
+
+    @Override
+    public String[] getDefaultCipherSuites() {
+        return mDelegate.getDefaultCipherSuites();
+    }
+
+    @Override
+    public String[] getSupportedCipherSuites() {
+        return mDelegate.getSupportedCipherSuites();
+    }
+
+    @Override
+    public Socket createSocket() throws IOException {
+        mCreated.incrementAndGet();
+        return mDelegate.createSocket();
+    }
+
+    @Override
+    public Socket createSocket(Socket s, String host, int port, boolean autoClose) throws IOException {
+        mCreated.incrementAndGet();
+        return mDelegate.createSocket(s, host, port, autoClose);
+    }
+
+    @Override
+    public Socket createSocket(String host, int port) throws IOException {
+        mCreated.incrementAndGet();
+        return mDelegate.createSocket(host, port);
+    }
+
+    @Override
+    public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+        mCreated.incrementAndGet();
+        return mDelegate.createSocket(host, port, localHost, localPort);
+    }
+
+    @Override
+    public Socket createSocket(InetAddress host, int port) throws IOException {
+        mCreated.incrementAndGet();
+        return mDelegate.createSocket(host, port);
+    }
+
+    @Override
+    public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+        mCreated.incrementAndGet();
+        return mDelegate.createSocket(address, port, localAddress, localPort);
+    }
+}
@@ -0,0 +1,26 @@
+/*
+ * Android SDK for Piwik
+ *
+ * @link https://github.com/piwik/piwik-android-sdk
+ * @license https://github.com/piwik/piwik-sdk-android/blob/master/LICENSE BSD-3 Clause
+ */
+package org.piwik.sdk.dispatcher;
+
+/**
+ * Lets the {@link Dispatcher} ask whether and how often it should send, see {@link Dispatcher#setScheduler(DispatchScheduler)}.
+ */
+public interface DispatchScheduler {
+    /**
+     * While this returns false the dispatcher pauses and keeps events queued.
+     * Call {@link Dispatcher#dispatchNow()} once sending is possible again.
+     *
+     * @return true if events can be sent right now
+     */
+    boolean canDispatch();
+
+    /**
+     * @param interval the configured dispatch interval in milliseconds
+     * @return the interval to wait before the next cycle
+     */
+    long getDispatchInterval(long interval);
+}
@@ -8,29 +8,42 @@
 package org.piwik.sdk.dispatcher;
 
 import android.os.Process;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.support.annotation.VisibleForTesting;
 
-import org.json.JSONObject;
 import org.piwik.sdk.Piwik;
+import org.piwik.sdk.QueryParams;
 import org.piwik.sdk.TrackerBulkURLWrapper;
 import org.piwik.sdk.tools.Logy;
 
-import java.io.BufferedWriter;
-import java.io.OutputStreamWriter;
-import java.io.UnsupportedEncodingException;
-import java.net.HttpURLConnection;
 import java.net.URL;
-import java.net.URLEncoder;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.BlockingQueue;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingDeque;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Sends json POST request to tracking url http://piwik.example.com/piwik.php with body
@@ -46,24 +59,71 @@ import java.util.concurrent.TimeUnit;
 @SuppressWarnings("deprecation")
 public class Dispatcher {
     private static final String LOGGER_TAG = Piwik.LOGGER_PREFIX + "Dispatcher";
-    private final BlockingQueue<String> mDispatchQueue = new LinkedBlockingQueue<>();
+    private static final int DISK_DRAIN_LIMIT = 500;
+    private static final int DEFAULT_MAX_QUEUE_SIZE = 5000;
+    private static final int DEFAULT_MAX_ATTEMPTS = 10;
+    // Piwik won't accept a cdt older than 4 hours without token_auth
+    private static final long DEFAULT_MAX_EVENT_AGE = 4 * 60 * 60 * 1000; // 4h
+    private static final long RETRY_BACKOFF_BASE = 5 * 1000; // 5s
+    private static final long RETRY_BACKOFF_MAX = 30 * 60 * 1000; // 30min
+    private static final int DEFAULT_MAX_PAGE_EVENTS = 100;
+    private static final int DEFAULT_MAX_PAGE_BYTES = 128 * 1024;
+    private final BlockingDeque<Event> mDispatchQueue = new LinkedBlockingDeque<>();
+    private final BlockingDeque<Event> mHighPriorityQueue = new LinkedBlockingDeque<>();
+    private volatile EventDiskQueue mDiskQueue;
+    private volatile EventDiskQueue mHighPriorityDiskQueue;
+    private volatile boolean mHighPriorityFlush = true;
+    private volatile EventDiskQueue mSpillQueue;
+    private final Object mQueueLock = new Object();
+    private volatile int mMaxQueueSize = DEFAULT_MAX_QUEUE_SIZE;
+    private volatile OverflowPolicy mOverflowPolicy = OverflowPolicy.DROP_OLDEST;
+    private final AtomicLong mDroppedEvents = new AtomicLong();
+    private final AtomicLong mSpilledEvents = new AtomicLong();
+    private final AtomicBoolean mDiskSyncPending = new AtomicBoolean();
     private final Object mThreadControl = new Object();
+    private static Executor sDefaultExecutor;
+    private volatile Executor mExecutor;
+    private volatile DispatchScheduler mScheduler;
+    private volatile boolean mStopped = false;
+    private volatile long mLaunchTime;
+    private final AtomicLong mLaunchCount = new AtomicLong();
+    private final AtomicLong mLaunchLatency = new AtomicLong();
+    private final AtomicLong mWakeupCount = new AtomicLong();
+    private final AtomicLong mWakeupTime = new AtomicLong();
     private final Semaphore mSleepToken = new Semaphore(0);
+    private final Random mRandom = new Random();
     private final Piwik mPiwik;
     private final URL mApiUrl;
     private final String mAuthToken;
 
-    private List<Packet> mDryRunOutput = Collections.synchronizedList(new ArrayList<Packet>());
+    private final MemoryTransport mDryRunTransport = new MemoryTransport();
 
-    private volatile int mTimeOut = 5 * 1000; // 5s
+    private volatile int mTimeOut = HttpTransport.DEFAULT_TIMEOUT;
     private volatile boolean mRunning = false;
 
     private volatile long mDispatchInterval = 120 * 1000; // 120s
+    private volatile int mMaxAttempts = DEFAULT_MAX_ATTEMPTS;
+    private volatile long mMaxEventAge = DEFAULT_MAX_EVENT_AGE;
+    private final HttpTransport mHttpTransport = new HttpTransport();
+    private final DispatcherMetrics mMetrics = new DispatcherMetrics(this);
+    private volatile MetricsListener mMetricsListener;
+    private volatile Transport mTransport = mHttpTransport;
+    private volatile int mMaxPageEvents = DEFAULT_MAX_PAGE_EVENTS;
+    private volatile int mMaxPageBytes = DEFAULT_MAX_PAGE_BYTES;
+    private volatile boolean mAdaptivePageSize = true;
+    private volatile int mMaxParallelUploads = 1;
+    // Only touched by the dispatch thread
+    private int mConsecutiveFailures = 0;
+    private int mDispatchedCount = 0;
+    private ThreadPoolExecutor mUploadExecutor;
+    // Shared by the upload threads
+    private final PageBudget mPageBudget = new PageBudget();
 
     public Dispatcher(Piwik piwik, URL apiUrl, String authToken) {
         mPiwik = piwik;
         mApiUrl = apiUrl;
         mAuthToken = authToken;
+        mHttpTransport.setMetrics(mMetrics);
     }
 
     /**
@@ -82,6 +142,7 @@ public class Dispatcher {
      */
     public void setTimeOut(int timeOut) {
         mTimeOut = timeOut;
+        mHttpTransport.setTimeOut(timeOut);
     }
 
     /**
@@ -98,76 +159,732 @@ public class Dispatcher {
         return mDispatchInterval;
     }
 
+    /**
+     * Events that could not be sent are put back into the queue and retried with an exponential backoff.
+     * Default is 10.
+     *
+     * @param maxAttempts how many dispatch cycles an event may fail before it is dropped
+     */
+    public void setMaxAttempts(int maxAttempts) {
+        mMaxAttempts = maxAttempts;
+    }
+
+    public int getMaxAttempts() {
+        return mMaxAttempts;
+    }
+
+    /**
+     * Failed events older than this are dropped instead of being retried.
+     * Default is 4 hours, Piwik does not accept older request times without an auth token.
+     *
+     * @param maxEventAge in milliseconds
+     */
+    public void setMaxEventAge(long maxEventAge) {
+        mMaxEventAge = maxEventAge;
+    }
+
+    public long getMaxEventAge() {
+        return mMaxEventAge;
+    }
+
+    /**
+     * @see HttpTransport#setGzipCompression(boolean)
+     */
+    public void setGzipCompression(boolean gzipCompression) {
+        mHttpTransport.setGzipCompression(gzipCompression);
+    }
+
+    public boolean isGzipCompression() {
+        return mHttpTransport.isGzipCompression();
+    }
+
+    /**
+     * @see HttpTransport#setPayloadSizeListener(PayloadSizeListener)
+     */
+    public void setPayloadSizeListener(@Nullable PayloadSizeListener listener) {
+        mHttpTransport.setPayloadSizeListener(listener);
+    }
+
+    /**
+     * @see HttpTransport#setConnectionReuse(boolean)
+     */
+    public void setConnectionReuse(boolean connectionReuse) {
+        mHttpTransport.setConnectionReuse(connectionReuse);
+    }
+
+    public boolean isConnectionReuse() {
+        return mHttpTransport.isConnectionReuse();
+    }
+
+    /**
+     * Replaces how pages are sent, e.g. with your own HTTP stack or a {@link LoopbackTransport} for benchmarks.
+     * Transports are called from the upload threads, see {@link #setMaxParallelUploads(int)}.
+     * The options of this dispatcher like {@link #setGzipCompression(boolean)} only apply to the default {@link HttpTransport}.
+     *
+     * @param transport the transport to use, null for the default {@link HttpTransport}
+     */
+    public void setTransport(@Nullable Transport transport) {
+        mTransport = transport != null ? transport : mHttpTransport;
+    }
+
+    @NonNull
+    public Transport getTransport() {
+        return mTransport;
+    }
+
+    /**
+     * Bulk requests hold at most this many events. Default is 100.
+     *
+     * @param maxPageEvents events per request
+     */
+    public void setMaxPageEvents(int maxPageEvents) {
+        mMaxPageEvents = maxPageEvents;
+    }
+
+    public int getMaxPageEvents() {
+        return mMaxPageEvents;
+    }
+
+    /**
+     * Bulk requests are cut before their events exceed this size, a single bigger event is still sent on its own.
+     * With {@link #setAdaptivePageSize(boolean)} this is the upper bound of the adaptive size. Default is 128KB.
+     *
+     * @param maxPageBytes size in bytes
+     */
+    public void setMaxPageBytes(int maxPageBytes) {
+        mMaxPageBytes = maxPageBytes;
+    }
+
+    public int getMaxPageBytes() {
+        return mMaxPageBytes;
+    }
+
+    /**
+     * By default the size of bulk requests follows the measured round-trip times and failures,
+     * so fast connections send large requests and slow ones send small requests that finish within the timeout.
+     *
+     * @param adaptivePageSize false to always fill requests up to {@link #getMaxPageBytes()}
+     */
+    public void setAdaptivePageSize(boolean adaptivePageSize) {
+        mAdaptivePageSize = adaptivePageSize;
+    }
+
+    public boolean isAdaptivePageSize() {
+        return mAdaptivePageSize;
+    }
+
+    /**
+     * @return the size in bytes bulk requests are currently cut at
+     */
+    public int getPageBytes() {
+        if (!mAdaptivePageSize)
+            return mMaxPageBytes;
+        synchronized (mPageBudget) {
+            return mPageBudget.getBytes(mMaxPageBytes);
+        }
+    }
+
+    /**
+     * Uploads the pages of different visitors at the same time, which drains a large backlog faster.
+     * Events of the same visitor are always sent one page after the other, Piwik needs them in order.
+     * Default is 1, everything is sent sequentially.
+     *
+     * @param maxParallelUploads how many requests may be in flight at once
+     */
+    public void setMaxParallelUploads(int maxParallelUploads) {
+        mMaxParallelUploads = maxParallelUploads;
+    }
+
+    public int getMaxParallelUploads() {
+        return mMaxParallelUploads;
+    }
+
+    /**
+     * Runs the dispatch loop on this executor instead of the default one.
+     * The loop occupies a thread while events are waiting and returns it once the queue is empty.
+     * Takes effect the next time the loop starts.
+     *
+     * @param executor the executor to use, null for the default which is shared by all trackers
+     */
+    public void setExecutor(@Nullable Executor executor) {
+        mExecutor = executor;
+    }
+
+    @NonNull
+    public Executor getExecutor() {
+        Executor executor = mExecutor;
+        return executor != null ? executor : getDefaultExecutor();
+    }
+
+    private static synchronized Executor getDefaultExecutor() {
+        if (sDefaultExecutor == null) {
+            // Idle threads stay parked for a while, so bursts of tracking don't create a new thread each time
+            sDefaultExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS,
+                    new SynchronousQueue<Runnable>(), newBackgroundThreadFactory("Piwik-Dispatcher"));
+        }
+        return sDefaultExecutor;
+    }
+
+    private static ThreadFactory newBackgroundThreadFactory(final String name) {
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(@NonNull final Runnable runnable) {
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        android.os.Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        runnable.run();
+                    }
+                }, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
     private boolean launch() {
         synchronized (mThreadControl) {
-            if (!mRunning) {
+            if (!mRunning && !mStopped && canDispatch()) {
                 mRunning = true;
-                new Thread(mLoop).start();
+                // A wakeup left over from the last run would skip the first interval
+                mSleepToken.drainPermits();
+                mLaunchCount.incrementAndGet();
+                mLaunchTime = System.nanoTime();
+                try {
+                    getExecutor().execute(mLoop);
+                } catch (RejectedExecutionException e) {
+                    Logy.w(LOGGER_TAG, "Executor rejected the dispatcher", e);
+                    mRunning = false;
+                    mThreadControl.notifyAll();
+                    return false;
+                }
                 return true;
             }
         }
         return false;
     }
 
+    /**
+     * Sends queued events right away instead of waiting for the dispatch interval.
+     */
+    public void dispatchNow() {
+        synchronized (mThreadControl) {
+            launch();
+            if (mRunning)
+                wakeUp();
+        }
+    }
+
+    /**
+     * Ends the current sleep of the loop, repeated calls before it wakes up still only skip one interval.
+     * Must hold mThreadControl.
+     */
+    private void wakeUp() {
+        mSleepToken.drainPermits();
+        mSleepToken.release();
+    }
+
+    /**
+     * Decides when dispatching is possible and how long to wait between cycles, e.g. a {@link NetworkScheduler}.
+     *
+     * @param scheduler the scheduler to ask or null to always dispatch in the set interval
+     */
+    public void setScheduler(@Nullable DispatchScheduler scheduler) {
+        mScheduler = scheduler;
+        if (!isQueueEmpty() && mDispatchInterval != -1)
+            launch();
+    }
+
+    @Nullable
+    public DispatchScheduler getScheduler() {
+        return mScheduler;
+    }
+
+    private boolean canDispatch() {
+        DispatchScheduler scheduler = mScheduler;
+        return scheduler == null || scheduler.canDispatch();
+    }
+
+    /**
+     * Lets the dispatcher run again after {@link #stop()}. Dispatchers are started when they are created.
+     */
+    public void start() {
+        synchronized (mThreadControl) {
+            mStopped = false;
+        }
+        if (!isQueueEmpty() && mDispatchInterval != -1)
+            launch();
+    }
+
+    /**
+     * Makes a running dispatcher send what is queued once more, without waiting for the interval, and then stop.
+     * Events that could not be sent stay queued until {@link #start()}.
+     * Use {@link #awaitTermination(long, TimeUnit)} to wait for it.
+     */
+    public void stop() {
+        synchronized (mThreadControl) {
+            mStopped = true;
+            if (mRunning)
+                wakeUp();
+        }
+    }
+
+    public boolean isStopped() {
+        return mStopped;
+    }
+
+    /**
+     * @return true if the dispatch loop is not running anymore, false if the timeout elapsed first
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        synchronized (mThreadControl) {
+            while (mRunning) {
+                long left = deadline - System.nanoTime();
+                if (left <= 0)
+                    return false;
+                TimeUnit.NANOSECONDS.timedWait(mThreadControl, left);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * @return how often the dispatch loop was started on the executor
+     */
+    public long getLaunchCount() {
+        return mLaunchCount.get();
+    }
+
+    /**
+     * @return the total time between starting the dispatch loop and the executor running it, in nanoseconds
+     */
+    public long getLaunchLatencyNanos() {
+        return mLaunchLatency.get();
+    }
+
+    /**
+     * @return how often the dispatch loop woke up to send events
+     */
+    public long getWakeupCount() {
+        return mWakeupCount.get();
+    }
+
+    /**
+     * @return the total time spent sending events after wakeups, in nanoseconds
+     */
+    public long getWakeupTimeNanos() {
+        return mWakeupTime.get();
+    }
+
+    /**
+     * @return live counters and histograms about queueing and delivery
+     */
+    @NonNull
+    public DispatcherMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * @param listener called after every dispatch cycle with the current metrics, null to remove it
+     */
+    public void setMetricsListener(@Nullable MetricsListener listener) {
+        mMetricsListener = listener;
+    }
+
     /**
      * Starts the dispatcher for one cycle if it is currently not working.
      * If the dispatcher is working it will skip the dispatch interval once.
      */
     public boolean forceDispatch() {
-        if (!launch()) {
-            mSleepToken.release();
+        synchronized (mThreadControl) {
+            if (launch())
+                return true;
+            if (mRunning)
+                wakeUp();
             return false;
         }
-        return true;
+    }
+
+    /**
+     * Keeps submitted events in a queue on disk instead of memory, so they survive the app being killed.
+     * Events still queued in memory are moved to the disk queue.
+     * Passing null switches back to the memory queue and moves any events left on disk into memory.
+     *
+     * @param diskQueue the queue to use or null
+     */
+    public void setDiskQueue(@Nullable EventDiskQueue diskQueue) {
+        setDiskQueue(Priority.NORMAL, diskQueue);
+    }
+
+    /**
+     * Same as {@link #setDiskQueue(EventDiskQueue)} for the lane of the given priority.
+     * Each lane needs its own queue. High priority events are synced to disk as soon as the executor gets to it.
+     */
+    public void setDiskQueue(@NonNull Priority priority, @Nullable EventDiskQueue diskQueue) {
+        EventDiskQueue previous;
+        synchronized (mThreadControl) {
+            previous = getDiskQueue(priority);
+            if (priority == Priority.HIGH)
+                mHighPriorityDiskQueue = diskQueue;
+            else
+                mDiskQueue = diskQueue;
+        }
+        BlockingDeque<Event> memoryQueue = getMemoryQueue(priority);
+        if (previous != null && previous != diskQueue) {
+            previous.drainTo(memoryQueue, Integer.MAX_VALUE);
+            previous.commit();
+            previous.close();
+        }
+        if (diskQueue != null) {
+            List<Event> pending = new ArrayList<>();
+            memoryQueue.drainTo(pending);
+            for (Event event : pending) {
+                if (!diskQueue.add(event))
+                    memoryQueue.add(event);
+            }
+            diskQueue.sync();
+        }
+        // Events recovered from a previous run should go out on the usual schedule
+        if (!isQueueEmpty() && mDispatchInterval != -1)
+            launch();
+    }
+
+    @Nullable
+    public EventDiskQueue getDiskQueue() {
+        return mDiskQueue;
+    }
+
+    @Nullable
+    public EventDiskQueue getDiskQueue(@NonNull Priority priority) {
+        return priority == Priority.HIGH ? mHighPriorityDiskQueue : mDiskQueue;
+    }
+
+    private BlockingDeque<Event> getMemoryQueue(Priority priority) {
+        return priority == Priority.HIGH ? mHighPriorityQueue : mDispatchQueue;
+    }
+
+    /**
+     * By default submitting a {@link Priority#HIGH} event sends it right away, even if the dispatch interval is -1.
+     *
+     * @param highPriorityFlush false to send high priority events with the next regular dispatch
+     */
+    public void setHighPriorityFlush(boolean highPriorityFlush) {
+        mHighPriorityFlush = highPriorityFlush;
+    }
+
+    public boolean isHighPriorityFlush() {
+        return mHighPriorityFlush;
+    }
+
+    /**
+     * Receives events beyond {@link #setMaxQueueSize(int)} if the policy is {@link OverflowPolicy#SPILL_TO_DISK}.
+     * Unlike {@link #setDiskQueue(EventDiskQueue)} events only go to disk while the memory queue is full.
+     * Passing null moves spilled events back into memory.
+     *
+     * @param spillQueue the queue to use or null
+     */
+    public void setSpillQueue(@Nullable EventDiskQueue spillQueue) {
+        EventDiskQueue previous;
+        synchronized (mThreadControl) {
+            previous = mSpillQueue;
+            mSpillQueue = spillQueue;
+        }
+        if (previous != null && previous != spillQueue) {
+            previous.drainTo(mDispatchQueue, Integer.MAX_VALUE);
+            previous.commit();
+            previous.close();
+        }
+        if (!isQueueEmpty() && mDispatchInterval != -1)
+            launch();
+    }
+
+    @Nullable
+    public EventDiskQueue getSpillQueue() {
+        return mSpillQueue;
+    }
+
+    /**
+     * Limits how many events are kept in memory, e.g. while the server can't be reached.
+     * Events that are currently being sent don't count. Default is 5000.
+     *
+     * @param maxQueueSize number of events
+     */
+    public void setMaxQueueSize(int maxQueueSize) {
+        mMaxQueueSize = maxQueueSize;
+    }
+
+    public int getMaxQueueSize() {
+        return mMaxQueueSize;
+    }
+
+    /**
+     * @param overflowPolicy what to do with new events once {@link #getMaxQueueSize()} is reached,
+     *                       default is {@link OverflowPolicy#DROP_OLDEST}
+     */
+    public void setOverflowPolicy(@NonNull OverflowPolicy overflowPolicy) {
+        mOverflowPolicy = overflowPolicy;
+    }
+
+    @NonNull
+    public OverflowPolicy getOverflowPolicy() {
+        return mOverflowPolicy;
+    }
+
+    /**
+     * @return how many events were discarded because the queue was full
+     */
+    public long getDroppedEventCount() {
+        return mDroppedEvents.get();
+    }
+
+    /**
+     * @return how many events went to the spill queue because the memory queue was full
+     */
+    public long getSpilledEventCount() {
+        return mSpilledEvents.get();
     }
 
     public void submit(String query) {
-        mDispatchQueue.add(query);
+        submit(query, Priority.NORMAL);
+    }
+
+    public void submit(String query, @NonNull Priority priority) {
+        submit(new Event(query), priority);
+    }
+
+    /**
+     * Like {@link #submit(String, Priority)}, but the event stays in its compact form while it is queued.
+     */
+    public void submit(@NonNull CompactQuery query, @NonNull Priority priority) {
+        submit(new Event(query), priority);
+    }
+
+    private void submit(Event event, Priority priority) {
+        mMetrics.onEnqueued();
+        if (priority == Priority.HIGH) {
+            EventDiskQueue diskQueue = mHighPriorityDiskQueue;
+            if (diskQueue != null && diskQueue.add(event))
+                requestDiskSync();
+            else
+                mHighPriorityQueue.add(event);
+            if (mHighPriorityFlush) {
+                dispatchNow();
+                return;
+            }
+        } else {
+            enqueue(event);
+        }
         if (mDispatchInterval != -1)
             launch();
     }
 
+    private void enqueue(Event event) {
+        EventDiskQueue diskQueue = mDiskQueue;
+        if (diskQueue != null && diskQueue.add(event)) {
+            requestDiskSync();
+            return;
+        }
+        // Once we spilled, new events queue up behind the spilled ones to keep their order
+        EventDiskQueue spillQueue = mSpillQueue;
+        if (spillQueue != null && !spillQueue.isEmpty() && spillQueue.add(event)) {
+            mSpilledEvents.incrementAndGet();
+            requestDiskSync();
+            return;
+        }
+        synchronized (mQueueLock) {
+            if (mDispatchQueue.size() >= mMaxQueueSize) {
+                switch (mOverflowPolicy) {
+                    case DROP_NEWEST:
+                        onOverflowDropped(1);
+                        return;
+                    case SAMPLE_DOWN:
+                        sampleDown();
+                        break;
+                    case SPILL_TO_DISK:
+                        if (spillQueue != null && spillQueue.add(event)) {
+                            mSpilledEvents.incrementAndGet();
+                            requestDiskSync();
+                            return;
+                        }
+                        // Fall through, no usable spill queue
+                    case DROP_OLDEST:
+                    default:
+                        if (mDispatchQueue.pollFirst() != null)
+                            onOverflowDropped(1);
+                        break;
+                }
+            }
+            mDispatchQueue.add(event);
+        }
+    }
+
+    /**
+     * Applies the overflow policy after requeued events pushed the memory queue over its limit.
+     * Must hold mQueueLock.
+     */
+    private void trimQueue() {
+        int excess = mDispatchQueue.size() - mMaxQueueSize;
+        if (excess <= 0)
+            return;
+        switch (mOverflowPolicy) {
+            case DROP_NEWEST:
+                for (int i = 0; i < excess; i++)
+                    mDispatchQueue.pollLast();
+                onOverflowDropped(excess);
+                return;
+            case SAMPLE_DOWN:
+                while (mDispatchQueue.size() > Math.max(mMaxQueueSize, 1))
+                    sampleDown();
+                return;
+            case SPILL_TO_DISK:
+                EventDiskQueue spillQueue = mSpillQueue;
+                if (spillQueue != null) {
+                    // The tail is still older than anything spilled so far, so it goes in front of the spill queue
+                    List<Event> spilled = new ArrayList<>(excess);
+                    for (int i = 0; i < excess; i++)
+                        spilled.add(0, mDispatchQueue.pollLast());
+                    if (spillQueue.requeue(spilled)) {
+                        mSpilledEvents.addAndGet(excess);
+                        return;
+                    }
+                    mDispatchQueue.addAll(spilled);
+                }
+                // Fall through, no usable spill queue
+            case DROP_OLDEST:
+            default:
+                for (int i = 0; i < excess; i++)
+                    mDispatchQueue.pollFirst();
+                onOverflowDropped(excess);
+                break;
+        }
+    }
+
+    /**
+     * Drops every second event of the memory queue.
+     */
+    private void sampleDown() {
+        List<Event> queued = new ArrayList<>(mDispatchQueue.size());
+        mDispatchQueue.drainTo(queued);
+        for (int i = 0; i < queued.size(); i += 2)
+            mDispatchQueue.add(queued.get(i));
+        int dropped = queued.size() / 2;
+        onOverflowDropped(dropped);
+        Logy.d(LOGGER_TAG, "Queue full, sampled down by %d events.", dropped);
+    }
+
+    private void onOverflowDropped(int count) {
+        mDroppedEvents.addAndGet(count);
+        mMetrics.onDropped(count);
+    }
+
+    int getMemoryQueueSize() {
+        return mHighPriorityQueue.size() + mDispatchQueue.size();
+    }
+
+    long getDiskQueueBytes() {
+        long bytes = 0;
+        for (EventDiskQueue diskQueue : new EventDiskQueue[]{mHighPriorityDiskQueue, mDiskQueue, mSpillQueue}) {
+            if (diskQueue != null)
+                bytes += diskQueue.getPendingBytes();
+        }
+        return bytes;
+    }
+
+    private boolean isQueueEmpty() {
+        for (EventDiskQueue diskQueue : new EventDiskQueue[]{mHighPriorityDiskQueue, mDiskQueue, mSpillQueue}) {
+            if (diskQueue != null && !diskQueue.isEmpty())
+                return false;
+        }
+        return mHighPriorityQueue.isEmpty() && mDispatchQueue.isEmpty();
+    }
+
+    /**
+     * Appends to the disk queues only fill a buffer, the flush and fsync run on the executor instead of the caller's thread.
+     * At most one sync is pending, appends made while it runs schedule the next one.
+     */
+    private void requestDiskSync() {
+        if (!mDiskSyncPending.compareAndSet(false, true))
+            return;
+        try {
+            getExecutor().execute(mDiskSync);
+        } catch (RejectedExecutionException e) {
+            // The dispatch loop syncs before it reads the queues
+            mDiskSyncPending.set(false);
+            Logy.w(LOGGER_TAG, "Executor rejected the disk sync", e);
+        }
+    }
+
+    private final Runnable mDiskSync = new Runnable() {
+        @Override
+        public void run() {
+            mDiskSyncPending.set(false);
+            for (EventDiskQueue diskQueue : new EventDiskQueue[]{mHighPriorityDiskQueue, mDiskQueue, mSpillQueue}) {
+                if (diskQueue != null && diskQueue.needsSync())
+                    diskQueue.sync();
+            }
+        }
+    };
+
+    /**
+     * After failures the interval is stretched by a capped exponential backoff with jitter,
+     * so a flaky endpoint doesn't make every device retry in lockstep.
+     */
+    private long getSleepTime() {
+        if (mStopped)
+            return 0;
+        long interval = mDispatchInterval;
+        DispatchScheduler scheduler = mScheduler;
+        if (scheduler != null)
+            interval = scheduler.getDispatchInterval(interval);
+        if (mConsecutiveFailures == 0 || interval < 0)
+            return interval;
+        long backoff = Math.min(RETRY_BACKOFF_MAX, RETRY_BACKOFF_BASE << Math.min(mConsecutiveFailures - 1, 16));
+        backoff = backoff / 2 + (long) (mRandom.nextDouble() * (backoff / 2));
+        return Math.max(interval, backoff);
+    }
+
     private Runnable mLoop = new Runnable() {
         @Override
         public void run() {
-            android.os.Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            mLaunchLatency.addAndGet(System.nanoTime() - mLaunchTime);
             while (mRunning) {
                 try {
                     // Either we wait the interval or forceDispatch() granted us one free pass
-                    mSleepToken.tryAcquire(mDispatchInterval, TimeUnit.MILLISECONDS);
+                    mSleepToken.tryAcquire(getSleepTime(), TimeUnit.MILLISECONDS);
                 } catch (InterruptedException e) {
                     e.printStackTrace();
                 }
-
-                int count = 0;
-                List<String> availableEvents = new ArrayList<>();
-                mDispatchQueue.drainTo(availableEvents);
-                Logy.d(LOGGER_TAG, "Drained " + availableEvents.size() + " events.");
-                TrackerBulkURLWrapper wrapper = new TrackerBulkURLWrapper(mApiUrl, availableEvents, mAuthToken);
-                Iterator<TrackerBulkURLWrapper.Page> pageIterator = wrapper.iterator();
-                while (pageIterator.hasNext()) {
-                    TrackerBulkURLWrapper.Page page = pageIterator.next();
-
-                    // use doGET when only event on current page
-                    if (page.elementsCount() > 1) {
-                        JSONObject eventData = wrapper.getEvents(page);
-                        if (eventData == null)
-                            continue;
-                        if (dispatch(new Packet(wrapper.getApiUrl(), eventData)))
-                            count += page.elementsCount();
-                    } else {
-                        URL targetURL = wrapper.getEventUrl(page);
-                        if (targetURL == null)
-                            continue;
-                        if (dispatch(new Packet(targetURL)))
-                            count += 1;
+                mWakeupCount.incrementAndGet();
+                synchronized (mThreadControl) {
+                    // Don't bother while offline, the scheduler calls dispatchNow() once we can send again
+                    if (!canDispatch()) {
+                        Logy.d(LOGGER_TAG, "Can't dispatch right now, pausing.");
+                        mRunning = false;
+                        mThreadControl.notifyAll();
+                        break;
                     }
                 }
-                Logy.d(LOGGER_TAG, "Dispatched " + count + " events.");
+                long wakeupStart = System.nanoTime();
+
+                mDispatchedCount = 0;
+                // High priority first, spilled events are newer than anything else in memory so they go last
+                if (dispatchQueue(mHighPriorityQueue, Priority.HIGH)
+                        && dispatchQueue(mHighPriorityDiskQueue, Priority.HIGH)
+                        && dispatchQueue(mDispatchQueue, Priority.NORMAL)
+                        && dispatchQueue(mDiskQueue, Priority.NORMAL))
+                    dispatchQueue(mSpillQueue, Priority.NORMAL);
+                int count = mDispatchedCount;
+                Logy.d(LOGGER_TAG, "Dispatched %d events.", count);
+                mWakeupTime.addAndGet(System.nanoTime() - wakeupStart);
+                MetricsListener metricsListener = mMetricsListener;
+                if (metricsListener != null)
+                    metricsListener.onMetrics(mMetrics);
                 synchronized (mThreadControl) {
-                    // We may be done or this was a forced dispatch
-                    if (mDispatchQueue.isEmpty() || mDispatchInterval < 0) {
+                    // We may be done, stopped or this was a forced dispatch
+                    if (mStopped || isQueueEmpty() || mDispatchInterval < 0) {
                         mRunning = false;
+                        mThreadControl.notifyAll();
                         break;
                     }
                 }
@@ -175,52 +892,276 @@ public class Dispatcher {
         }
     };
 
+    /**
+     * @return false if a page failed
+     */
+    private boolean dispatchQueue(BlockingDeque<Event> queue, Priority priority) {
+        List<Event> availableEvents = new ArrayList<>();
+        queue.drainTo(availableEvents);
+        if (availableEvents.isEmpty())
+            return true;
+        Logy.d(LOGGER_TAG, "Drained %d %s events.", availableEvents.size(), priority);
+        int done = dispatchEvents(availableEvents, priority);
+        mDispatchedCount += done;
+        return done == availableEvents.size();
+    }
+
+    /**
+     * @return false if a page failed
+     */
+    private boolean dispatchQueue(@Nullable EventDiskQueue diskQueue, Priority priority) {
+        if (diskQueue == null)
+            return true;
+        // Fsync whatever the callers appended since the last cycle, unless a disk sync already did
+        if (diskQueue.needsSync())
+            diskQueue.sync();
+        // Read the disk queue in chunks so a big backlog doesn't end up in memory at once
+        List<Event> availableEvents = new ArrayList<>();
+        boolean failed = false;
+        while (!failed && diskQueue.drainTo(availableEvents, DISK_DRAIN_LIMIT) > 0) {
+            Logy.d(LOGGER_TAG, "Drained %d %s events from disk.", availableEvents.size(), priority);
+            int done = dispatchEvents(availableEvents, priority);
+            mDispatchedCount += done;
+            failed = done < availableEvents.size();
+            diskQueue.commit();
+            availableEvents.clear();
+        }
+        return !failed;
+    }
+
+    /**
+     * Sends the events and puts those that failed back into the queue.
+     * Events of different visitors are uploaded in parallel if {@link #setMaxParallelUploads(int)} allows it.
+     *
+     * @return the number of events that were sent, less than events.size() if a page failed
+     */
+    private int dispatchEvents(List<Event> events, Priority priority) {
+        int maxParallelUploads = mMaxParallelUploads;
+        if (maxParallelUploads > 1 && events.size() > 1) {
+            // Piwik needs the events of one visitor in order, so each visitor gets a lane that is sent page by page
+            Map<String, List<Event>> lanes = new LinkedHashMap<>();
+            for (Event event : events) {
+                String visitor = getVisitorKey(event);
+                List<Event> lane = lanes.get(visitor);
+                if (lane == null) {
+                    lane = new ArrayList<>();
+                    lanes.put(visitor, lane);
+                }
+                lane.add(event);
+            }
+            if (lanes.size() > 1)
+                return dispatchLanes(new ArrayList<>(lanes.values()), events, priority, maxParallelUploads);
+        }
+
+        int done = sendPages(events);
+        onPagesSent(done, events.size());
+        if (done < events.size())
+            requeue(events.subList(done, events.size()), priority);
+        return done;
+    }
+
+    private int dispatchLanes(List<List<Event>> lanes, List<Event> events, Priority priority, int maxParallelUploads) {
+        ExecutorService executor = getUploadExecutor(maxParallelUploads);
+        List<Future<Integer>> results = new ArrayList<>(lanes.size());
+        for (final List<Event> lane : lanes) {
+            results.add(executor.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    return sendPages(lane);
+                }
+            }));
+        }
+
+        int done = 0;
+        Set<Event> failed = Collections.newSetFromMap(new IdentityHashMap<Event, Boolean>());
+        for (int i = 0; i < lanes.size(); i++) {
+            List<Event> lane = lanes.get(i);
+            int laneDone = 0;
+            try {
+                laneDone = results.get(i).get();
+            } catch (InterruptedException | ExecutionException e) {
+                Logy.w(LOGGER_TAG, "Upload failed", e);
+            }
+            done += laneDone;
+            failed.addAll(lane.subList(laneDone, lane.size()));
+        }
+        onPagesSent(done, events.size());
+        if (!failed.isEmpty()) {
+            // Keep the original order for the retry
+            List<Event> retry = new ArrayList<>(failed.size());
+            for (Event event : events) {
+                if (failed.contains(event))
+                    retry.add(event);
+            }
+            requeue(retry, priority);
+        }
+        return done;
+    }
+
+    private void onPagesSent(int done, int total) {
+        if (done == total)
+            mConsecutiveFailures = 0;
+        else
+            mConsecutiveFailures = done > 0 ? 1 : mConsecutiveFailures + 1;
+    }
+
+    /**
+     * Sends the events page by page and stops at the first page that fails.
+     * Pages that can't be turned into a request are dropped, retrying them wouldn't help.
+     *
+     * @return the number of leading events that were sent or dropped
+     */
+    private int sendPages(List<Event> events) {
+        // Each page encodes its own events, the rest of the batch stays compact meanwhile
+        QueryList queries = new QueryList(events);
+        int done = 0;
+        TrackerBulkURLWrapper wrapper = new TrackerBulkURLWrapper(mApiUrl, queries, mAuthToken, mMaxPageEvents, getPageBytes());
+        Iterator<TrackerBulkURLWrapper.Page> pageIterator = wrapper.iterator();
+        while (pageIterator.hasNext()) {
+            TrackerBulkURLWrapper.Page page = pageIterator.next();
+
+            Packet packet;
+            // use doGET when only event on current page
+            if (page.elementsCount() > 1) {
+                List<String> requests = wrapper.getRequests(page);
+                // The packet outlives the batch, e.g. in the dry run output, so it gets its own copy of the page
+                packet = requests != null ? new Packet(wrapper.getApiUrl(), new ArrayList<>(requests), wrapper.getAuthToken()) : null;
+            } else {
+                URL targetURL = wrapper.getEventUrl(page);
+                packet = targetURL != null ? new Packet(targetURL) : null;
+            }
+            if (packet == null) {
+                // Nothing was sent, so this page says nothing about the connection
+                Logy.w(LOGGER_TAG, "Dropping %d events that can't be sent.", page.elementsCount());
+                mMetrics.onDropped(page.elementsCount());
+                done += page.elementsCount();
+                queries.release(done);
+                continue;
+            }
+
+            long start = SystemClock.elapsedRealtime();
+            boolean success = dispatch(packet);
+            long rtt = SystemClock.elapsedRealtime() - start;
+            mMetrics.onPageSent(rtt);
+            if (mAdaptivePageSize) {
+                synchronized (mPageBudget) {
+                    mPageBudget.onPageSent(page.getByteCount(), rtt, success, mTimeOut, mMaxPageBytes);
+                }
+                wrapper.setPageLimits(mMaxPageEvents, getPageBytes());
+            }
+
+            if (!success)
+                return done;
+            long now = System.currentTimeMillis();
+            for (int i = done; i < done + page.elementsCount(); i++)
+                mMetrics.onEventSent(now - events.get(i).getTimeStamp());
+            done += page.elementsCount();
+            queries.release(done);
+        }
+        return done;
+    }
+
+    @NonNull
+    static String getVisitorKey(@NonNull Event event) {
+        CompactQuery compactQuery = event.getCompactQuery();
+        if (compactQuery == null)
+            return getVisitorKey(event.getQuery());
+        // Same keys as for the String form, without building the query
+        String key = compactQuery.get(QueryParams.USER_ID);
+        if (key != null)
+            return "uid=" + PercentEncoder.encode(key);
+        key = compactQuery.get(QueryParams.VISITOR_ID);
+        return key != null ? "_id=" + PercentEncoder.encode(key) : "";
+    }
+
+    /**
+     * Events are ordered per user id if there is one, otherwise per visitor id.
+     */
+    @NonNull
+    static String getVisitorKey(@NonNull String query) {
+        String key = getQueryValue(query, QueryParams.USER_ID.toString());
+        if (key != null)
+            return "uid=" + key;
+        key = getQueryValue(query, QueryParams.VISITOR_ID.toString());
+        return key != null ? "_id=" + key : "";
+    }
+
+    @Nullable
+    private static String getQueryValue(String query, String name) {
+        int index = 0;
+        while ((index = query.indexOf(name, index)) != -1) {
+            int valueStart = index + name.length();
+            if (index > 0 && (query.charAt(index - 1) == '?' || query.charAt(index - 1) == '&')
+                    && valueStart < query.length() && query.charAt(valueStart) == '=') {
+                int valueEnd = query.indexOf('&', valueStart);
+                return query.substring(valueStart + 1, valueEnd == -1 ? query.length() : valueEnd);
+            }
+            index = valueStart;
+        }
+        return null;
+    }
+
+    private ExecutorService getUploadExecutor(int threads) {
+        ThreadPoolExecutor executor = mUploadExecutor;
+        if (executor == null || executor.getMaximumPoolSize() != threads) {
+            if (executor != null)
+                executor.shutdown();
+            executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), newBackgroundThreadFactory("Piwik-Upload"));
+            // Don't keep idle threads around between dispatch cycles
+            executor.allowCoreThreadTimeOut(true);
+            mUploadExecutor = executor;
+        }
+        return executor;
+    }
+
+    /**
+     * Puts events back into the queue unless they failed too often or are too old.
+     */
+    private void requeue(List<Event> events, Priority priority) {
+        long now = System.currentTimeMillis();
+        List<Event> retry = new ArrayList<>(events.size());
+        for (Event event : events) {
+            if (event.incrementAttempts() < mMaxAttempts && now - event.getTimeStamp() < mMaxEventAge)
+                retry.add(event);
+        }
+        if (retry.size() < events.size()) {
+            mMetrics.onDropped(events.size() - retry.size());
+            Logy.w(LOGGER_TAG, "Dropped %d events that failed too often or got too old.", events.size() - retry.size());
+        }
+
+        EventDiskQueue diskQueue = getDiskQueue(priority);
+        BlockingDeque<Event> memoryQueue = getMemoryQueue(priority);
+        // Back to the head of the queue, in their original order.
+        // This is the dispatch thread, it can wait for the disk.
+        if (diskQueue == null || !diskQueue.requeue(retry)) {
+            synchronized (mQueueLock) {
+                for (int i = retry.size() - 1; i >= 0; i--)
+                    memoryQueue.addFirst(retry.get(i));
+                if (memoryQueue == mDispatchQueue)
+                    trimQueue();
+            }
+        }
+        Logy.d(LOGGER_TAG, "Requeued %d events.", retry.size());
+    }
+
     @VisibleForTesting
     public boolean dispatch(@NonNull Packet packet) {
         // Some error checking
         if (packet.getTargetURL() == null)
             return false;
-        if (packet.getJSONObject() != null && packet.getJSONObject().length() == 0)
+        if (packet.getRequests() != null ? packet.getRequests().isEmpty() : packet.getJSONObject() != null && packet.getJSONObject().length() == 0)
             return false;
 
         if (mPiwik.isDryRun()) {
-            Logy.d(LOGGER_TAG, "DryRun, stored HttpRequest, now " + mDryRunOutput.size());
-            mDryRunOutput.add(packet);
-            return true;
+            Logy.d(LOGGER_TAG, "DryRun, stored HttpRequest, now %d", mDryRunTransport.getPackets().size());
+            return mDryRunTransport.send(packet);
         }
 
-        if (!mDryRunOutput.isEmpty())
-            mDryRunOutput.clear();
+        if (!mDryRunTransport.getPackets().isEmpty())
+            mDryRunTransport.clear();
 
-        try {
-            HttpURLConnection urlConnection = (HttpURLConnection) packet.getTargetURL().openConnection();
-            urlConnection.setConnectTimeout(mTimeOut);
-            urlConnection.setReadTimeout(mTimeOut);
-
-            // IF there is json data we want to do a post
-            if (packet.getJSONObject() != null) {
-                // POST
-                urlConnection.setDoOutput(true); // Forces post
-                urlConnection.setRequestProperty("Content-Type", "application/json");
-                urlConnection.setRequestProperty("charset", "utf-8");
-
-                BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(urlConnection.getOutputStream(), "UTF-8"));
-                writer.write(packet.getJSONObject().toString());
-                writer.flush();
-                writer.close();
-            } else {
-                // GET
-                urlConnection.setDoOutput(false); // Defaults to false, but for readability
-            }
-
-            int statusCode = urlConnection.getResponseCode();
-            Logy.d(LOGGER_TAG, String.format("status code %s", statusCode));
-            return statusCode == HttpURLConnection.HTTP_NO_CONTENT || statusCode == HttpURLConnection.HTTP_OK;
-        } catch (Exception e) {
-            // Broad but an analytics app shouldn't impact it's host app.
-            Logy.w(LOGGER_TAG, "Cannot send request", e);
-        }
-        return false;
+        return mTransport.send(packet);
     }
 
     /**
@@ -228,16 +1169,10 @@ public class Dispatcher {
      *
      * @param param raw data
      * @return encoded string
+     * @see PercentEncoder
      */
     public static String urlEncodeUTF8(String param) {
-        try {
-            return URLEncoder.encode(param, "UTF-8").replaceAll("\\+", "%20");
-        } catch (UnsupportedEncodingException e) {
-            Logy.w(LOGGER_TAG, String.format("Cannot encode %s", param), e);
-            return "";
-        } catch (NullPointerException e) {
-            return "";
-        }
+        return PercentEncoder.encode(param);
     }
 
     /**
@@ -247,20 +1182,36 @@ public class Dispatcher {
      * @return String "?idsite=1&url=http://example.org&action_name=Test bulk log view&rec=1"
      */
     public static String urlEncodeUTF8(Map<String, String> map) {
+        if (map.isEmpty())
+            return "";
         StringBuilder sb = new StringBuilder(100);
         sb.append('?');
         for (Map.Entry<String, String> entry : map.entrySet()) {
-            sb.append(urlEncodeUTF8(entry.getKey()));
+            if (sb.length() > 1)
+                sb.append('&');
+            PercentEncoder.encode(sb, entry.getKey());
             sb.append('=');
-            sb.append(urlEncodeUTF8(entry.getValue()));
-            sb.append('&');
+            PercentEncoder.encode(sb, entry.getValue());
         }
+        return sb.toString();
+    }
 
-        return sb.substring(0, sb.length() - 1);
+    /**
+     * @see HttpTransport#getNewConnectionCount()
+     */
+    public long getNewConnectionCount() {
+        return mHttpTransport.getNewConnectionCount();
+    }
+
+    /**
+     * @see HttpTransport#getReusedConnectionCount()
+     */
+    public long getReusedConnectionCount() {
+        return mHttpTransport.getReusedConnectionCount();
     }
 
     public List<Packet> getDryRunOutput() {
-        return mDryRunOutput;
+        return mDryRunTransport.getPackets();
     }
 
 }
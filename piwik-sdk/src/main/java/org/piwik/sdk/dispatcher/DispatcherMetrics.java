@@ -0,0 +1,140 @@
+/*
+ * Android SDK for Piwik
+ *
+ * @link https://github.com/piwik/piwik-android-sdk
+ * @license https://github.com/piwik/piwik-sdk-android/blob/master/LICENSE BSD-3 Clause
+ */
+package org.piwik.sdk.dispatcher;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and histograms about what the {@link Dispatcher} does, see {@link Dispatcher#getMetrics()}.
+ * All counters are lock-free and only ever grow, export them periodically through a {@link MetricsListener}.
+ */
+public class DispatcherMetrics {
+    /**
+     * Status "class" for requests that failed without a response, e.g. timeouts.
+     */
+    public static final int STATUS_NO_RESPONSE = 0;
+    private final Dispatcher mDispatcher;
+    private final AtomicLong mEnqueued = new AtomicLong();
+    private final AtomicLong mSent = new AtomicLong();
+    private final AtomicLong mDropped = new AtomicLong();
+    private final AtomicLong mBytesSent = new AtomicLong();
+    // Indexed by the first digit of the status code
+    private final AtomicLongArray mStatusCounts = new AtomicLongArray(6);
+    private final Histogram mPageLatency = new Histogram();
+    private final Histogram mDeliveryLatency = new Histogram();
+
+    DispatcherMetrics(Dispatcher dispatcher) {
+        mDispatcher = dispatcher;
+    }
+
+    void onEnqueued() {
+        mEnqueued.incrementAndGet();
+    }
+
+    void onDropped(int count) {
+        mDropped.addAndGet(count);
+    }
+
+    void onPageSent(long latency) {
+        mPageLatency.record(latency);
+    }
+
+    void onEventSent(long deliveryLatency) {
+        mSent.incrementAndGet();
+        mDeliveryLatency.record(deliveryLatency);
+    }
+
+    void onBytesSent(int bytes) {
+        mBytesSent.addAndGet(bytes);
+    }
+
+    /**
+     * @param statusCode the HTTP status code or {@link #STATUS_NO_RESPONSE}
+     */
+    void onHttpStatus(int statusCode) {
+        int statusClass = statusCode / 100;
+        mStatusCounts.incrementAndGet(statusClass > 0 && statusClass < 6 ? statusClass : STATUS_NO_RESPONSE);
+    }
+
+    /**
+     * @return events waiting in memory right now, events on disk are covered by {@link #getDiskQueueBytes()}
+     */
+    public int getQueueDepth() {
+        return mDispatcher.getMemoryQueueSize();
+    }
+
+    /**
+     * Checks the file sizes, so this does a bit of disk I/O.
+     *
+     * @return bytes waiting in the disk queues right now
+     */
+    public long getDiskQueueBytes() {
+        return mDispatcher.getDiskQueueBytes();
+    }
+
+    /**
+     * @return events submitted to the dispatcher
+     */
+    public long getEnqueuedCount() {
+        return mEnqueued.get();
+    }
+
+    /**
+     * @return events the server accepted
+     */
+    public long getSentCount() {
+        return mSent.get();
+    }
+
+    /**
+     * @return events discarded because the queue was full, they failed too often or got too old
+     */
+    public long getDroppedCount() {
+        return mDropped.get();
+    }
+
+    /**
+     * Only counted by the default HTTP transport.
+     *
+     * @return request bytes that went over the wire, POST bodies after compression and GET urls
+     */
+    public long getBytesSent() {
+        return mBytesSent.get();
+    }
+
+    /**
+     * Only counted by the default HTTP transport.
+     *
+     * @param statusClass 2 for 2xx, 4 for 4xx and so on or {@link #STATUS_NO_RESPONSE}
+     * @return how many requests ended with a status of that class
+     */
+    public long getHttpStatusCount(int statusClass) {
+        return mStatusCounts.get(statusClass);
+    }
+
+    /**
+     * @return time to send a page, in milliseconds
+     */
+    public Histogram getPageLatency() {
+        return mPageLatency;
+    }
+
+    /**
+     * @return time from submitting an event until the server accepted it, in milliseconds
+     */
+    public Histogram getDeliveryLatency() {
+        return mDeliveryLatency;
+    }
+
+    @Override
+    public String toString() {
+        return "DispatcherMetrics{queued=" + getQueueDepth() + ", enqueued=" + getEnqueuedCount() + ", sent=" + getSentCount()
+                + ", dropped=" + getDroppedCount() + ", bytes=" + getBytesSent() + ", pageLatency=" + mPageLatency
+                + ", deliveryLatency=" + mDeliveryLatency + "}";
+    }
+}
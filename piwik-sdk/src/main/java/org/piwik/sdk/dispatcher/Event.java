@@ -0,0 +1,84 @@
+/*
+ * Android SDK for Piwik
+ *
+ * @link https://github.com/piwik/piwik-android-sdk
+ * @license https://github.com/piwik/piwik-sdk-android/blob/master/LICENSE BSD-3 Clause
+ */
+package org.piwik.sdk.dispatcher;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+/**
+ * A queued query plus the bookkeeping the dispatcher needs to retry it.
+ * The query is either kept as String or as {@link CompactQuery}, the latter is only encoded when it gets sent.
+ */
+public class Event {
+    private final String mQuery;
+    private final CompactQuery mCompactQuery;
+    private final long mTimeStamp;
+    private int mAttempts;
+
+    public Event(@NonNull String query) {
+        this(query, System.currentTimeMillis(), 0);
+    }
+
+    public Event(@NonNull CompactQuery query) {
+        this(query, System.currentTimeMillis(), 0);
+    }
+
+    protected Event(@NonNull String query, long timeStamp, int attempts) {
+        mQuery = query;
+        mCompactQuery = null;
+        mTimeStamp = timeStamp;
+        mAttempts = attempts;
+    }
+
+    protected Event(@NonNull CompactQuery query, long timeStamp, int attempts) {
+        mQuery = null;
+        mCompactQuery = query;
+        mTimeStamp = timeStamp;
+        mAttempts = attempts;
+    }
+
+    /**
+     * Builds the String each time for compact events, so don't hold on to it longer than needed.
+     *
+     * @return the encoded query, e.g. "?idsite=1&rec=1&url=..."
+     */
+    @NonNull
+    public String getQuery() {
+        return mQuery != null ? mQuery : mCompactQuery.toQuery();
+    }
+
+    /**
+     * @return null if the event was submitted as String
+     */
+    @Nullable
+    public CompactQuery getCompactQuery() {
+        return mCompactQuery;
+    }
+
+    /**
+     * @return when the event was first submitted, in milliseconds
+     */
+    public long getTimeStamp() {
+        return mTimeStamp;
+    }
+
+    /**
+     * @return how often sending this event has failed so far
+     */
+    public int getAttempts() {
+        return mAttempts;
+    }
+
+    protected int incrementAttempts() {
+        return ++mAttempts;
+    }
+
+    @Override
+    public String toString() {
+        return getQuery();
+    }
+}
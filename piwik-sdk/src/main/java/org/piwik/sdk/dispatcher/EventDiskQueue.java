@@ -0,0 +1,637 @@
+/*
+ * Android SDK for Piwik
+ *
+ * @link https://github.com/piwik/piwik-android-sdk
+ * @license https://github.com/piwik/piwik-sdk-android/blob/master/LICENSE BSD-3 Clause
+ */
+package org.piwik.sdk.dispatcher;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.VisibleForTesting;
+
+import org.piwik.sdk.Piwik;
+import org.piwik.sdk.tools.Logy;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Durable FIFO queue for events that were submitted but not yet sent.
+ * <p/>
+ * Events are appended to segment files ({@code <number>.seg}) as length prefixed records
+ * holding the submit timestamp, the failed attempts and either the UTF-8 query or the {@link CompactQuery} bytes.
+ * Each segment starts with a {@link #FORMAT_VERSION} byte, segments of an unknown version are discarded instead of decoded.
+ * A read cursor ({@link #CURSOR_FILE}) remembers how far the dispatcher has consumed the queue.
+ * Segments that are completely behind the cursor are deleted on {@link #commit()}.
+ * <p/>
+ * Delivery is at-least-once: events drained but not yet committed are replayed after a restart.
+ * Events that failed to send go back into a separate {@link #RETRY_FILE} via {@link #requeue(List)},
+ * which is drained before the segments, so retries keep their place ahead of newer events.
+ * <p/>
+ * {@link #add(Event)} only writes into a memory buffer, so it stays cheap on the caller's thread.
+ * The owner calls {@link #sync()} from a background thread, appends since the last sync are lost if the process dies.
+ * <p/>
+ * This class is threadsafe.
+ */
+public class EventDiskQueue {
+    private static final String LOGGER_TAG = Piwik.LOGGER_PREFIX + "EventDiskQueue";
+    protected static final String CURSOR_FILE = "cursor";
+    protected static final String RETRY_FILE = "retry";
+    private static final String SEGMENT_SUFFIX = ".seg";
+    /**
+     * Bump this when the record layout or the {@link CompactQuery} bytes change.
+     */
+    protected static final int FORMAT_VERSION = 1;
+    private static final int SEGMENT_HEADER_BYTES = 1;
+    private static final int SEGMENT_MAX_BYTES = 256 * 1024;
+    private static final int MAX_RECORD_BYTES = 1024 * 1024;
+    private static final int RECORD_HEADER_BYTES = 4;
+    private static final int RECORD_META_BYTES = 8 + 4;
+    private static final int WRITE_BUFFER_BYTES = 16 * 1024;
+
+    private final File mDirectory;
+
+    private long mReadSegment;
+    private long mReadOffset;
+    private long mCommittedSegment;
+    private long mCommittedOffset;
+
+    private long mWriteSegment;
+    private long mWriteOffset;
+    private FileOutputStream mWriteFile;
+    private DataOutputStream mWriter;
+    // Segments that were rolled over since the last sync, still open so they can be flushed and synced
+    private final List<FileOutputStream> mRetiredFiles = new ArrayList<>();
+    private final List<DataOutputStream> mRetiredWriters = new ArrayList<>();
+    private int mUnsyncedAppends = 0;
+    private boolean mClosed = false;
+    // Requeued events in memory and in the retry file, the first mRetryDrained of them were handed out by drainTo()
+    private final List<Event> mRetry = new ArrayList<>();
+    private int mRetryDrained = 0;
+
+    /**
+     * Opens the queue and recovers its state from a previous run.
+     * This does disk I/O, so don't call it on the main thread if you can avoid it.
+     *
+     * @param directory a directory exclusively used by this queue, created if it does not exist
+     * @throws IOException if the directory can't be used
+     */
+    public EventDiskQueue(@NonNull File directory) throws IOException {
+        mDirectory = directory;
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs())
+            throw new IOException("Cannot create queue directory " + directory);
+        recover();
+    }
+
+    private void recover() throws IOException {
+        long[] segments = listSegments();
+        readCursor(segments.length > 0 ? segments[0] : 0);
+
+        // Anything before the cursor was already delivered
+        for (long segment : segments) {
+            if (segment < mCommittedSegment) {
+                deleteSegment(segment);
+            } else if (!hasKnownFormat(segmentFile(segment))) {
+                Logy.w(LOGGER_TAG, "Discarding segment %s of unknown version", segment);
+                deleteSegment(segment);
+            }
+        }
+
+        mWriteSegment = Math.max(mCommittedSegment, segments.length > 0 ? segments[segments.length - 1] : 0);
+        File writeFile = segmentFile(mWriteSegment);
+        long validEnd = 0;
+        if (writeFile.exists()) {
+            long scanFrom = mWriteSegment == mCommittedSegment ? mCommittedOffset : SEGMENT_HEADER_BYTES;
+            validEnd = scanValidEnd(writeFile, scanFrom);
+            if (validEnd < writeFile.length()) {
+                // The process died while writing the last record
+                Logy.w(LOGGER_TAG, "Truncating torn record at the end of %s", writeFile.getName());
+                RandomAccessFile raf = new RandomAccessFile(writeFile, "rw");
+                try {
+                    raf.setLength(validEnd);
+                } finally {
+                    raf.close();
+                }
+            }
+        }
+        if (mWriteSegment == mCommittedSegment && mCommittedOffset > validEnd)
+            mCommittedOffset = Math.max(validEnd, SEGMENT_HEADER_BYTES);
+
+        mReadSegment = mCommittedSegment;
+        mReadOffset = mCommittedOffset;
+        openWriter(mWriteSegment, validEnd);
+        readRetryFile();
+    }
+
+    private void readRetryFile() {
+        File retryFile = new File(mDirectory, RETRY_FILE);
+        if (!retryFile.exists())
+            return;
+        if (!hasKnownFormat(retryFile)) {
+            Logy.w(LOGGER_TAG, "Discarding retry file of unknown version");
+            if (!retryFile.delete())
+                Logy.w(LOGGER_TAG, "Cannot delete retry file");
+            return;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(retryFile)));
+            long remaining = retryFile.length() - in.skip(SEGMENT_HEADER_BYTES);
+            while (remaining >= RECORD_HEADER_BYTES) {
+                int recordLength = in.readInt();
+                if (recordLength < RECORD_META_BYTES || recordLength > MAX_RECORD_BYTES || RECORD_HEADER_BYTES + recordLength > remaining)
+                    throw new IOException("Corrupt retry record");
+                mRetry.add(readRecord(in, recordLength));
+                remaining -= RECORD_HEADER_BYTES + recordLength;
+            }
+        } catch (IOException e) {
+            Logy.w(LOGGER_TAG, "Cannot read retry file, keeping what was read", e);
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    private void readCursor(long fallbackSegment) {
+        mCommittedSegment = fallbackSegment;
+        mCommittedOffset = SEGMENT_HEADER_BYTES;
+        File cursorFile = new File(mDirectory, CURSOR_FILE);
+        if (!cursorFile.exists())
+            return;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(cursorFile));
+            long segment = in.readLong();
+            long offset = in.readLong();
+            if (segment >= 0 && offset >= 0) {
+                mCommittedSegment = segment;
+                mCommittedOffset = Math.max(offset, SEGMENT_HEADER_BYTES);
+            }
+        } catch (IOException e) {
+            Logy.w(LOGGER_TAG, "Cannot read queue cursor, replaying all segments", e);
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    /**
+     * @return true if the file starts with the {@link #FORMAT_VERSION} byte or is empty
+     */
+    private static boolean hasKnownFormat(File file) {
+        if (file.length() == 0)
+            return true;
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            return in.read() == FORMAT_VERSION;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    /**
+     * Walks the record headers of a segment without reading the payloads.
+     *
+     * @return offset directly behind the last complete record
+     */
+    private long scanValidEnd(File segment, long from) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(segment, "r");
+        try {
+            long length = raf.length();
+            long position = Math.min(from, length);
+            while (position + RECORD_HEADER_BYTES <= length) {
+                raf.seek(position);
+                int recordLength = raf.readInt();
+                if (recordLength < RECORD_META_BYTES || recordLength > MAX_RECORD_BYTES || position + RECORD_HEADER_BYTES + recordLength > length)
+                    break;
+                position += RECORD_HEADER_BYTES + recordLength;
+            }
+            return position;
+        } finally {
+            raf.close();
+        }
+    }
+
+    private void openWriter(long segment, long offset) throws IOException {
+        mWriteSegment = segment;
+        mWriteOffset = offset;
+        mWriteFile = new FileOutputStream(segmentFile(segment), true);
+        mWriter = new DataOutputStream(new BufferedOutputStream(mWriteFile, WRITE_BUFFER_BYTES));
+        if (offset == 0) {
+            // Goes to disk together with the first record
+            mWriter.writeByte(FORMAT_VERSION);
+            mWriteOffset = SEGMENT_HEADER_BYTES;
+        }
+    }
+
+    /**
+     * Appends an event to the tail of the queue.
+     * Doesn't wait for the disk, see {@link #sync()}.
+     *
+     * @param event the event to persist
+     * @return false if the event could not be written, the caller should keep it elsewhere
+     */
+    public synchronized boolean add(@NonNull Event event) {
+        if (mClosed)
+            return false;
+        byte[] data = encode(event);
+        if (data == null)
+            return false;
+        int recordLength = RECORD_META_BYTES + data.length;
+        try {
+            if (mWriteOffset > SEGMENT_HEADER_BYTES && mWriteOffset + RECORD_HEADER_BYTES + recordLength > SEGMENT_MAX_BYTES)
+                rollSegment();
+            writeRecord(mWriter, event, data);
+            mWriteOffset += RECORD_HEADER_BYTES + recordLength;
+            mUnsyncedAppends++;
+            return true;
+        } catch (IOException e) {
+            Logy.w(LOGGER_TAG, "Cannot append event", e);
+            return false;
+        }
+    }
+
+    /**
+     * Puts events that were drained but failed back in front of everything else in the queue, in their given order.
+     * Unlike {@link #add(Event)} this waits for the disk, it's meant for the dispatch thread.
+     * Also commits the read position, like {@link #commit()}.
+     *
+     * @param events the events to retry
+     * @return false if they could not be persisted, the caller should keep them elsewhere
+     */
+    public synchronized boolean requeue(@NonNull List<Event> events) {
+        if (mClosed)
+            return false;
+        for (Event event : events) {
+            if (encode(event) == null)
+                return false;
+        }
+        // Drained retries that are requeued again are part of events, so drop them first
+        List<Event> retry = new ArrayList<>(events.size() + mRetry.size() - mRetryDrained);
+        retry.addAll(events);
+        retry.addAll(mRetry.subList(mRetryDrained, mRetry.size()));
+        try {
+            writeRetryFile(retry);
+        } catch (IOException e) {
+            Logy.w(LOGGER_TAG, "Cannot write retry file", e);
+            return false;
+        }
+        mRetry.clear();
+        mRetry.addAll(retry);
+        mRetryDrained = 0;
+        commitCursor();
+        return true;
+    }
+
+    private void writeRetryFile(List<Event> events) throws IOException {
+        File retryFile = new File(mDirectory, RETRY_FILE);
+        if (events.isEmpty()) {
+            if (retryFile.exists() && !retryFile.delete())
+                throw new IOException("Cannot delete retry file");
+            return;
+        }
+        File tmp = new File(mDirectory, RETRY_FILE + ".tmp");
+        FileOutputStream file = new FileOutputStream(tmp);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file));
+        try {
+            out.writeByte(FORMAT_VERSION);
+            for (Event event : events)
+                writeRecord(out, event, encode(event));
+            out.flush();
+            file.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(retryFile))
+            throw new IOException("Cannot replace retry file");
+    }
+
+    /**
+     * @return the payload of the record or null if the event can't be persisted
+     */
+    private static byte[] encode(Event event) {
+        byte[] data;
+        CompactQuery compactQuery = event.getCompactQuery();
+        if (compactQuery != null) {
+            data = compactQuery.getBytes();
+        } else {
+            try {
+                data = event.getQuery().getBytes("UTF-8");
+            } catch (IOException e) {
+                return null;
+            }
+        }
+        if (RECORD_META_BYTES + data.length > MAX_RECORD_BYTES) {
+            Logy.w(LOGGER_TAG, "Event too large to persist: %d bytes", data.length);
+            return null;
+        }
+        return data;
+    }
+
+    private static void writeRecord(DataOutputStream out, Event event, byte[] data) throws IOException {
+        out.writeInt(RECORD_META_BYTES + data.length);
+        out.writeLong(event.getTimeStamp());
+        out.writeInt(event.getAttempts());
+        out.write(data);
+    }
+
+    /**
+     * Reads the rest of a record whose length was already read.
+     */
+    private static Event readRecord(DataInputStream in, int recordLength) throws IOException {
+        long timeStamp = in.readLong();
+        int attempts = in.readInt();
+        byte[] data = new byte[recordLength - RECORD_META_BYTES];
+        in.readFully(data);
+        CompactQuery compactQuery = CompactQuery.fromBytes(data);
+        if (compactQuery != null)
+            return new Event(compactQuery, timeStamp, attempts);
+        return new Event(new String(data, "UTF-8"), timeStamp, attempts);
+    }
+
+    private void rollSegment() throws IOException {
+        // Flushing and syncing the full segment is left to the next sync()
+        mRetiredFiles.add(mWriteFile);
+        mRetiredWriters.add(mWriter);
+        openWriter(mWriteSegment + 1, 0);
+    }
+
+    /**
+     * @return true if there are appends that were not synced yet
+     */
+    public synchronized boolean needsSync() {
+        return !mClosed && mUnsyncedAppends > 0;
+    }
+
+    /**
+     * Writes all appended events to the storage device and waits for it, so call it from a background thread.
+     */
+    public synchronized void sync() {
+        if (mClosed || mUnsyncedAppends == 0)
+            return;
+        try {
+            for (int i = 0; i < mRetiredWriters.size(); i++) {
+                mRetiredWriters.get(i).flush();
+                mRetiredFiles.get(i).getFD().sync();
+                mRetiredWriters.get(i).close();
+            }
+            mRetiredWriters.clear();
+            mRetiredFiles.clear();
+            mWriter.flush();
+            mWriteFile.getFD().sync();
+            mUnsyncedAppends = 0;
+        } catch (IOException e) {
+            Logy.w(LOGGER_TAG, "Cannot sync queue", e);
+        }
+    }
+
+    /**
+     * Hands the buffered appends to the OS without waiting for the disk, so they can be read back.
+     */
+    private void flushBuffers() throws IOException {
+        for (DataOutputStream writer : mRetiredWriters)
+            writer.flush();
+        mWriter.flush();
+    }
+
+    /**
+     * Reads up to {@code maxEvents} events from the read position and moves it forward.
+     * The events stay on disk until {@link #commit()} is called.
+     *
+     * @param out       collection receiving the events in queue order
+     * @param maxEvents upper bound of events to read
+     * @return the number of events read
+     */
+    public synchronized int drainTo(@NonNull Collection<? super Event> out, int maxEvents) {
+        if (mClosed)
+            return 0;
+        try {
+            flushBuffers();
+        } catch (IOException e) {
+            Logy.w(LOGGER_TAG, "Cannot flush queue", e);
+        }
+        int count = 0;
+        while (count < maxEvents && mRetryDrained < mRetry.size()) {
+            out.add(mRetry.get(mRetryDrained++));
+            count++;
+        }
+        while (count < maxEvents && !isSegmentsEmpty()) {
+            long segmentEnd = mReadSegment == mWriteSegment ? mWriteOffset : segmentFile(mReadSegment).length();
+            if (mReadOffset >= segmentEnd) {
+                mReadSegment++;
+                mReadOffset = SEGMENT_HEADER_BYTES;
+                continue;
+            }
+            DataInputStream in = null;
+            try {
+                FileInputStream file = new FileInputStream(segmentFile(mReadSegment));
+                in = new DataInputStream(new BufferedInputStream(file));
+                // Segments can only be replaced while the queue is closed, but don't decode a format we don't know
+                int version = in.readUnsignedByte();
+                if (version != FORMAT_VERSION)
+                    throw new IOException("Unknown segment version " + version);
+                long skipped = SEGMENT_HEADER_BYTES;
+                while (skipped < mReadOffset)
+                    skipped += in.skip(mReadOffset - skipped);
+                while (count < maxEvents && mReadOffset + RECORD_HEADER_BYTES <= segmentEnd) {
+                    int recordLength = in.readInt();
+                    if (recordLength < RECORD_META_BYTES || recordLength > MAX_RECORD_BYTES || mReadOffset + RECORD_HEADER_BYTES + recordLength > segmentEnd)
+                        throw new IOException("Corrupt record at " + mReadOffset);
+                    out.add(readRecord(in, recordLength));
+                    mReadOffset += RECORD_HEADER_BYTES + recordLength;
+                    count++;
+                }
+                if (mReadOffset + RECORD_HEADER_BYTES > segmentEnd)
+                    mReadOffset = segmentEnd;
+            } catch (IOException e) {
+                Logy.w(LOGGER_TAG, "Cannot read segment " + mReadSegment + ", skipping the rest of it", e);
+                if (mReadSegment == mWriteSegment) {
+                    mReadOffset = mWriteOffset;
+                } else {
+                    mReadSegment++;
+                    mReadOffset = SEGMENT_HEADER_BYTES;
+                }
+            } finally {
+                closeQuietly(in);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Persists the read position, everything drained so far won't be replayed after a restart.
+     * Segments that were fully consumed are deleted.
+     */
+    public synchronized void commit() {
+        if (mClosed)
+            return;
+        if (mRetryDrained > 0) {
+            List<Event> retry = new ArrayList<>(mRetry.subList(mRetryDrained, mRetry.size()));
+            try {
+                writeRetryFile(retry);
+                mRetry.clear();
+                mRetry.addAll(retry);
+                mRetryDrained = 0;
+            } catch (IOException e) {
+                Logy.w(LOGGER_TAG, "Cannot write retry file", e);
+            }
+        }
+        commitCursor();
+    }
+
+    private void commitCursor() {
+        if (mReadSegment == mCommittedSegment && mReadOffset == mCommittedOffset)
+            return;
+        try {
+            if (isSegmentsEmpty() && mWriteOffset > SEGMENT_HEADER_BYTES) {
+                // Compact: everything was consumed, start over with a fresh segment
+                sync();
+                mWriter.close();
+                openWriter(mWriteSegment + 1, 0);
+                mReadSegment = mWriteSegment;
+                mReadOffset = mWriteOffset;
+            }
+            writeCursor(mReadSegment, mReadOffset);
+            for (long segment : listSegments()) {
+                if (segment < mReadSegment)
+                    deleteSegment(segment);
+            }
+            mCommittedSegment = mReadSegment;
+            mCommittedOffset = mReadOffset;
+        } catch (IOException e) {
+            Logy.w(LOGGER_TAG, "Cannot commit queue cursor", e);
+        }
+    }
+
+    private void writeCursor(long segment, long offset) throws IOException {
+        File tmp = new File(mDirectory, CURSOR_FILE + ".tmp");
+        FileOutputStream file = new FileOutputStream(tmp);
+        DataOutputStream out = new DataOutputStream(file);
+        try {
+            out.writeLong(segment);
+            out.writeLong(offset);
+            out.flush();
+            file.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(new File(mDirectory, CURSOR_FILE)))
+            throw new IOException("Cannot replace cursor file");
+    }
+
+    /**
+     * @return bytes of records that were not drained yet, including their headers
+     */
+    public synchronized long getPendingBytes() {
+        if (mClosed)
+            return 0;
+        long retryBytes = 0;
+        for (int i = mRetryDrained; i < mRetry.size(); i++) {
+            byte[] data = encode(mRetry.get(i));
+            retryBytes += RECORD_HEADER_BYTES + RECORD_META_BYTES + (data != null ? data.length : 0);
+        }
+        return retryBytes + getPendingSegmentBytes();
+    }
+
+    private long getPendingSegmentBytes() {
+        if (isSegmentsEmpty())
+            return 0;
+        if (mReadSegment == mWriteSegment)
+            return mWriteOffset - mReadOffset;
+        try {
+            flushBuffers();
+        } catch (IOException e) {
+            Logy.w(LOGGER_TAG, "Cannot flush queue", e);
+        }
+        long bytes = Math.max(0, segmentFile(mReadSegment).length() - mReadOffset);
+        for (long segment = mReadSegment + 1; segment < mWriteSegment; segment++)
+            bytes += Math.max(0, segmentFile(segment).length() - SEGMENT_HEADER_BYTES);
+        return bytes + mWriteOffset - SEGMENT_HEADER_BYTES;
+    }
+
+    /**
+     * @return true if there is nothing left to drain
+     */
+    public synchronized boolean isEmpty() {
+        return mClosed || (mRetryDrained >= mRetry.size() && isSegmentsEmpty());
+    }
+
+    private boolean isSegmentsEmpty() {
+        return mReadSegment >= mWriteSegment && mReadOffset >= mWriteOffset;
+    }
+
+    /**
+     * Syncs pending appends and releases the open file handles.
+     * Further calls to {@link #add(Event)} fail and nothing can be drained anymore.
+     */
+    public synchronized void close() {
+        if (mClosed)
+            return;
+        sync();
+        for (DataOutputStream writer : mRetiredWriters)
+            closeQuietly(writer);
+        closeQuietly(mWriter);
+        mClosed = true;
+    }
+
+    @NonNull
+    public File getDirectory() {
+        return mDirectory;
+    }
+
+    /**
+     * @return the numbers of the segment files, sorted
+     */
+    @VisibleForTesting
+    long[] listSegments() {
+        String[] names = mDirectory.list();
+        if (names == null)
+            return new long[0];
+        long[] segments = new long[names.length];
+        int count = 0;
+        for (String name : names) {
+            if (!name.endsWith(SEGMENT_SUFFIX))
+                continue;
+            try {
+                long segment = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+                segments[count++] = segment;
+            } catch (NumberFormatException e) {
+                Logy.w(LOGGER_TAG, "Ignoring unknown file %s", name);
+            }
+        }
+        segments = Arrays.copyOf(segments, count);
+        Arrays.sort(segments);
+        return segments;
+    }
+
+    private File segmentFile(long segment) {
+        return new File(mDirectory, segment + SEGMENT_SUFFIX);
+    }
+
+    private void deleteSegment(long segment) {
+        if (!segmentFile(segment).delete())
+            Logy.w(LOGGER_TAG, "Cannot delete segment %s", segment);
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null)
+            return;
+        try {
+            closeable.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
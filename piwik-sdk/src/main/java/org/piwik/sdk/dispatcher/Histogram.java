@@ -0,0 +1,95 @@
+/*
+ * Android SDK for Piwik
+ *
+ * @link https://github.com/piwik/piwik-android-sdk
+ * @license https://github.com/piwik/piwik-sdk-android/blob/master/LICENSE BSD-3 Clause
+ */
+package org.piwik.sdk.dispatcher;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram with power of two buckets, bucket i counts values below 2^i.
+ * Recording is a few atomic increments, so it can be used on hot paths and from any thread.
+ */
+public class Histogram {
+    public static final int BUCKET_COUNT = 32;
+    private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mSum = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong();
+
+    /**
+     * @param value the value to record, negative values count as 0
+     */
+    public void record(long value) {
+        if (value < 0)
+            value = 0;
+        mBuckets.incrementAndGet(getBucketIndex(value));
+        mCount.incrementAndGet();
+        mSum.addAndGet(value);
+        long max;
+        while ((max = mMax.get()) < value && !mMax.compareAndSet(max, value)) ;
+    }
+
+    static int getBucketIndex(long value) {
+        return Math.min(BUCKET_COUNT - 1, 64 - Long.numberOfLeadingZeros(value));
+    }
+
+    /**
+     * @return the exclusive upper bound of the bucket, the last bucket also holds everything larger
+     */
+    public static long getBucketUpperBound(int index) {
+        return 1L << index;
+    }
+
+    /**
+     * @return how many values fell into the bucket
+     */
+    public long getBucketCount(int index) {
+        return mBuckets.get(index);
+    }
+
+    public long getCount() {
+        return mCount.get();
+    }
+
+    public long getSum() {
+        return mSum.get();
+    }
+
+    public long getMax() {
+        return mMax.get();
+    }
+
+    /**
+     * The histogram only knows buckets, so this is an upper bound that is at most twice the real value.
+     *
+     * @param percentile between 0 and 100
+     * @return the value below which the given percentage of the recorded values fall, 0 if nothing was recorded
+     */
+    public long getPercentile(double percentile) {
+        long count = 0;
+        long[] buckets = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            buckets[i] = mBuckets.get(i);
+            count += buckets[i];
+        }
+        if (count == 0)
+            return 0;
+        long rank = (long) Math.ceil(count * percentile / 100d);
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += buckets[i];
+            if (seen >= rank && buckets[i] > 0)
+                return Math.min(getBucketUpperBound(i) - 1, getMax());
+        }
+        return getMax();
+    }
+
+    @Override
+    public String toString() {
+        return "count=" + getCount() + " p50=" + getPercentile(50) + " p99=" + getPercentile(99) + " max=" + getMax();
+    }
+}
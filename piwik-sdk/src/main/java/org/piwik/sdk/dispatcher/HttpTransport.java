@@ -0,0 +1,241 @@
+/*
+ * Android SDK for Piwik
+ *
+ * @link https://github.com/piwik/piwik-android-sdk
+ * @license https://github.com/piwik/piwik-sdk-android/blob/master/LICENSE BSD-3 Clause
+ */
+package org.piwik.sdk.dispatcher;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.piwik.sdk.Piwik;
+import org.piwik.sdk.tools.Logy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * Sends packets with {@link HttpURLConnection}, single events as GET and pages as json POST.
+ * This is the default {@link Transport} of the {@link Dispatcher}.
+ */
+public class HttpTransport implements Transport {
+    private static final String LOGGER_TAG = Piwik.LOGGER_PREFIX + "HttpTransport";
+    static final int DEFAULT_TIMEOUT = 5 * 1000; // 5s
+    private volatile int mTimeOut = DEFAULT_TIMEOUT;
+    private volatile boolean mGzipCompression = false;
+    private volatile PayloadSizeListener mPayloadSizeListener;
+    private volatile DispatcherMetrics mMetrics;
+    private volatile boolean mConnectionReuse = true;
+    private volatile CountingSSLSocketFactory mSocketFactory;
+    private volatile long mNewConnectionsBefore = 0;
+    private final AtomicLong mHttpsRequests = new AtomicLong();
+    // Each upload thread reuses its own buffers
+    private final ThreadLocal<UploadBuffers> mUploadBuffers = new ThreadLocal<UploadBuffers>() {
+        @Override
+        protected UploadBuffers initialValue() {
+            return new UploadBuffers();
+        }
+    };
+
+    /**
+     * Timeout when trying to establish connection and when trying to read a response.
+     *
+     * @param timeOut timeout in milliseconds
+     */
+    public void setTimeOut(int timeOut) {
+        mTimeOut = timeOut;
+    }
+
+    public int getTimeOut() {
+        return mTimeOut;
+    }
+
+    /**
+     * Compresses bulk POST bodies and sends them with {@code Content-Encoding: gzip}.
+     * Bulk requests repeat the same parameters for every event and shrink considerably.
+     * Your Piwik server (or a proxy in front of it) has to support gzip encoded request bodies.
+     * Compression is done on the dispatcher thread. Default is false.
+     *
+     * @param gzipCompression true to compress POST bodies
+     */
+    public void setGzipCompression(boolean gzipCompression) {
+        mGzipCompression = gzipCompression;
+    }
+
+    public boolean isGzipCompression() {
+        return mGzipCompression;
+    }
+
+    /**
+     * @param listener gets the raw and the transmitted size of each POST body, null to remove it
+     */
+    public void setPayloadSizeListener(@Nullable PayloadSizeListener listener) {
+        mPayloadSizeListener = listener;
+    }
+
+    /**
+     * By default connections are kept alive and reused for the following requests,
+     * so draining a backlog of many pages only needs one TCP/TLS handshake.
+     *
+     * @param connectionReuse false to close the connection after each request
+     */
+    public void setConnectionReuse(boolean connectionReuse) {
+        mConnectionReuse = connectionReuse;
+    }
+
+    public boolean isConnectionReuse() {
+        return mConnectionReuse;
+    }
+
+    /**
+     * @param metrics receives the status codes and sent bytes, null to stop counting
+     */
+    public void setMetrics(@Nullable DispatcherMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    @Override
+    public boolean send(@NonNull Packet packet) {
+        DispatcherMetrics metrics = mMetrics;
+        HttpURLConnection urlConnection = null;
+        try {
+            urlConnection = (HttpURLConnection) packet.getTargetURL().openConnection();
+            urlConnection.setConnectTimeout(mTimeOut);
+            urlConnection.setReadTimeout(mTimeOut);
+            if (!mConnectionReuse)
+                urlConnection.setRequestProperty("Connection", "close");
+            if (urlConnection instanceof HttpsURLConnection) {
+                ((HttpsURLConnection) urlConnection).setSSLSocketFactory(getSocketFactory());
+                mHttpsRequests.incrementAndGet();
+            }
+
+            // IF there is json data we want to do a post
+            if (packet.isPost()) {
+                // POST
+                urlConnection.setDoOutput(true); // Forces post
+                urlConnection.setRequestProperty("Content-Type", "application/json");
+                urlConnection.setRequestProperty("charset", "utf-8");
+
+                List<String> requests = packet.getRequests();
+                //noinspection ConstantConditions
+                String json = requests == null ? packet.getJSONObject().toString() : null;
+                UploadBuffers buffers = mUploadBuffers.get();
+                int rawLength;
+                int sentLength;
+                if (mGzipCompression) {
+                    urlConnection.setRequestProperty("Content-Encoding", "gzip");
+                    buffers.gzip.reset();
+                    GZIPOutputStream gzip = new GZIPOutputStream(buffers.gzip);
+                    rawLength = writeBody(buffers.writer, gzip, requests, packet.getAuthToken(), json);
+                    gzip.close();
+                    sentLength = buffers.gzip.size();
+                    urlConnection.setFixedLengthStreamingMode(sentLength);
+                    OutputStream out = urlConnection.getOutputStream();
+                    buffers.gzip.writeTo(out);
+                    out.close();
+                } else {
+                    // A known length lets the body go out directly instead of being buffered by the connection
+                    sentLength = json == null ? BulkRequestWriter.measure(requests, packet.getAuthToken()) : BulkRequestWriter.measure(json);
+                    urlConnection.setFixedLengthStreamingMode(sentLength);
+                    OutputStream out = urlConnection.getOutputStream();
+                    rawLength = writeBody(buffers.writer, out, requests, packet.getAuthToken(), json);
+                    out.close();
+                }
+
+                PayloadSizeListener listener = mPayloadSizeListener;
+                if (listener != null)
+                    listener.onPayloadWritten(packet, rawLength, sentLength);
+                if (metrics != null)
+                    metrics.onBytesSent(sentLength);
+            } else {
+                // GET
+                urlConnection.setDoOutput(false); // Defaults to false, but for readability
+                if (metrics != null)
+                    metrics.onBytesSent(packet.getTargetURL().toExternalForm().length());
+            }
+
+            int statusCode = urlConnection.getResponseCode();
+            Logy.d(LOGGER_TAG, "status code %d", statusCode);
+            if (metrics != null)
+                metrics.onHttpStatus(statusCode);
+            // Only a fully read and closed response lets the connection go back into the keep-alive pool
+            consumeResponse(urlConnection, statusCode);
+            if (!mConnectionReuse)
+                urlConnection.disconnect();
+            return statusCode == HttpURLConnection.HTTP_NO_CONTENT || statusCode == HttpURLConnection.HTTP_OK;
+        } catch (Exception e) {
+            // Broad but an analytics app shouldn't impact it's host app.
+            Logy.w(LOGGER_TAG, "Cannot send request", e);
+            if (metrics != null)
+                metrics.onHttpStatus(DispatcherMetrics.STATUS_NO_RESPONSE);
+            // Don't let a broken connection go back into the pool
+            if (urlConnection != null)
+                urlConnection.disconnect();
+        }
+        return false;
+    }
+
+    static int writeBody(BulkRequestWriter writer, OutputStream out, List<String> requests, String authToken, String json) throws IOException {
+        if (requests != null)
+            return writer.write(out, requests, authToken);
+        return writer.write(out, json);
+    }
+
+    private void consumeResponse(HttpURLConnection connection, int statusCode) throws IOException {
+        InputStream in = statusCode >= HttpURLConnection.HTTP_BAD_REQUEST ? connection.getErrorStream() : connection.getInputStream();
+        if (in == null)
+            return;
+        try {
+            //noinspection StatementWithEmptyBody
+            while (in.read(mUploadBuffers.get().response) != -1) ;
+        } finally {
+            in.close();
+        }
+    }
+
+    private synchronized CountingSSLSocketFactory getSocketFactory() {
+        // Keep using the same factory instance, HttpURLConnection only pools connections with equal factories
+        SSLSocketFactory current = HttpsURLConnection.getDefaultSSLSocketFactory();
+        if (mSocketFactory == null || mSocketFactory.getDelegate() != current) {
+            if (mSocketFactory != null)
+                mNewConnectionsBefore += mSocketFactory.getCreatedCount();
+            mSocketFactory = new CountingSSLSocketFactory(current);
+        }
+        return mSocketFactory;
+    }
+
+    /**
+     * Only HTTPS requests are counted, plain HTTP connections can't be observed.
+     *
+     * @return how many requests needed a new connection
+     */
+    public long getNewConnectionCount() {
+        CountingSSLSocketFactory factory = mSocketFactory;
+        return factory == null ? 0 : mNewConnectionsBefore + factory.getCreatedCount();
+    }
+
+    /**
+     * Only HTTPS requests are counted, plain HTTP connections can't be observed.
+     *
+     * @return how many requests went over a pooled keep-alive connection
+     */
+    public long getReusedConnectionCount() {
+        return Math.max(0, mHttpsRequests.get() - getNewConnectionCount());
+    }
+
+    private static class UploadBuffers {
+        final BulkRequestWriter writer = new BulkRequestWriter();
+        final ByteArrayOutputStream gzip = new ByteArrayOutputStream();
+        final byte[] response = new byte[1024];
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Android SDK for Piwik
+ *
+ * @link https://github.com/piwik/piwik-android-sdk
+ * @license https://github.com/piwik/piwik-sdk-android/blob/master/LICENSE BSD-3 Clause
+ */
+package org.piwik.sdk.dispatcher;
+
+import android.support.annotation.NonNull;
+
+import org.json.JSONArray;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * For benchmarks, encodes packets like {@link HttpTransport} would and discards the bytes.
+ * An optional latency simulates the round trip, so dispatch throughput can be measured without a network.
+ */
+public class LoopbackTransport implements Transport {
+    private final long mLatency;
+    private final AtomicLong mPackets = new AtomicLong();
+    private final AtomicLong mEvents = new AtomicLong();
+    private final AtomicLong mBytes = new AtomicLong();
+    private final ThreadLocal<BulkRequestWriter> mWriter = new ThreadLocal<BulkRequestWriter>() {
+        @Override
+        protected BulkRequestWriter initialValue() {
+            return new BulkRequestWriter();
+        }
+    };
+    private static final OutputStream NULL_STREAM = new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(@NonNull byte[] b, int off, int len) {
+        }
+    };
+
+    public LoopbackTransport() {
+        this(0);
+    }
+
+    /**
+     * @param latency how long each send blocks, in milliseconds
+     */
+    public LoopbackTransport(long latency) {
+        mLatency = latency;
+    }
+
+    @Override
+    public boolean send(@NonNull Packet packet) {
+        int bytes;
+        int events = 1;
+        if (packet.isPost()) {
+            List<String> requests = packet.getRequests();
+            //noinspection ConstantConditions
+            String json = requests == null ? packet.getJSONObject().toString() : null;
+            try {
+                bytes = HttpTransport.writeBody(mWriter.get(), NULL_STREAM, requests, packet.getAuthToken(), json);
+            } catch (IOException e) {
+                return false;
+            }
+            if (requests != null) {
+                events = requests.size();
+            } else {
+                JSONArray array = packet.getJSONObject().optJSONArray("requests");
+                events = array != null ? array.length() : 1;
+            }
+        } else {
+            bytes = packet.getTargetURL().toExternalForm().length();
+        }
+        if (mLatency > 0) {
+            try {
+                Thread.sleep(mLatency);
+            } catch (InterruptedException e) {
+                return false;
+            }
+        }
+        mPackets.incrementAndGet();
+        mEvents.addAndGet(events);
+        mBytes.addAndGet(bytes);
+        return true;
+    }
+
+    public long getPacketCount() {
+        return mPackets.get();
+    }
+
+    public long getEventCount() {
+        return mEvents.get();
+    }
+
+    /**
+     * @return the encoded size of all POST bodies plus the length of all GET urls
+     */
+    public long getByteCount() {
+        return mBytes.get();
+    }
+}
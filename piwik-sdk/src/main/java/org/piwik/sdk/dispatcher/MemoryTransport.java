@@ -0,0 +1,37 @@
+/*
+ * Android SDK for Piwik
+ *
+ * @link https://github.com/piwik/piwik-android-sdk
+ * @license https://github.com/piwik/piwik-sdk-android/blob/master/LICENSE BSD-3 Clause
+ */
+package org.piwik.sdk.dispatcher;
+
+import android.support.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Keeps all packets in a list instead of sending them, this is what {@link org.piwik.sdk.Piwik#setDryRun(boolean)} uses.
+ */
+public class MemoryTransport implements Transport {
+    private final List<Packet> mPackets = Collections.synchronizedList(new ArrayList<Packet>());
+
+    @Override
+    public boolean send(@NonNull Packet packet) {
+        mPackets.add(packet);
+        return true;
+    }
+
+    /**
+     * @return a synchronized list of the packets received so far
+     */
+    public List<Packet> getPackets() {
+        return mPackets;
+    }
+
+    public void clear() {
+        mPackets.clear();
+    }
+}
@@ -0,0 +1,18 @@
+/*
+ * Android SDK for Piwik
+ *
+ * @link https://github.com/piwik/piwik-android-sdk
+ * @license https://github.com/piwik/piwik-sdk-android/blob/master/LICENSE BSD-3 Clause
+ */
+package org.piwik.sdk.dispatcher;
+
+/**
+ * Exports {@link DispatcherMetrics}, e.g. to your own monitoring.
+ * Called on the dispatcher thread after every dispatch cycle, so keep it short.
+ */
+public interface MetricsListener {
+    /**
+     * @param metrics the live metrics of the dispatcher, the values keep changing while you read them
+     */
+    void onMetrics(DispatcherMetrics metrics);
+}
@@ -0,0 +1,160 @@
+/*
+ * Android SDK for Piwik
+ *
+ * @link https://github.com/piwik/piwik-android-sdk
+ * @license https://github.com/piwik/piwik-sdk-android/blob/master/LICENSE BSD-3 Clause
+ */
+package org.piwik.sdk.dispatcher;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.BatteryManager;
+import android.support.annotation.NonNull;
+
+import org.piwik.sdk.Piwik;
+import org.piwik.sdk.tools.Logy;
+
+/**
+ * Pauses dispatching while the device is offline and sends everything as soon as it is back online.
+ * On metered networks (mobile data) the dispatch interval is stretched unless the device is charging,
+ * so more events go out together and the radio wakes up less often.
+ * <p/>
+ * While registered the network and charging state are cached from the broadcasts,
+ * so asking the scheduler doesn't cost a system call on every submitted event.
+ */
+public class NetworkScheduler implements DispatchScheduler {
+    private static final String LOGGER_TAG = Piwik.LOGGER_PREFIX + "NetworkScheduler";
+    private static final int DEFAULT_METERED_INTERVAL_FACTOR = 4;
+    private final Context mContext;
+    private final Dispatcher mDispatcher;
+    private volatile int mMeteredIntervalFactor = DEFAULT_METERED_INTERVAL_FACTOR;
+    private volatile boolean mRegistered = false;
+    private volatile boolean mConnected = true;
+    private volatile boolean mMetered = false;
+    private volatile boolean mCharging = false;
+
+    private final BroadcastReceiver mConnectivityReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            mMetered = isMetered();
+            mConnected = isConnected();
+            if (mConnected) {
+                Logy.d(LOGGER_TAG, "Online again, dispatching.");
+                mDispatcher.dispatchNow();
+            }
+        }
+    };
+
+    private final BroadcastReceiver mPowerReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            mCharging = Intent.ACTION_POWER_CONNECTED.equals(intent.getAction());
+        }
+    };
+
+    public NetworkScheduler(@NonNull Context context, @NonNull Dispatcher dispatcher) {
+        mContext = context.getApplicationContext();
+        mDispatcher = dispatcher;
+    }
+
+    /**
+     * Starts listening for connectivity and power changes.
+     */
+    public synchronized void register() {
+        if (mRegistered)
+            return;
+        mConnected = isConnected();
+        mMetered = isMetered();
+        mCharging = isCharging();
+        mContext.registerReceiver(mConnectivityReceiver, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+        IntentFilter power = new IntentFilter(Intent.ACTION_POWER_CONNECTED);
+        power.addAction(Intent.ACTION_POWER_DISCONNECTED);
+        mContext.registerReceiver(mPowerReceiver, power);
+        mRegistered = true;
+    }
+
+    public synchronized void unregister() {
+        if (!mRegistered)
+            return;
+        mContext.unregisterReceiver(mConnectivityReceiver);
+        mContext.unregisterReceiver(mPowerReceiver);
+        mRegistered = false;
+    }
+
+    /**
+     * On metered networks the dispatch interval is multiplied by this, default is 4.
+     *
+     * @param meteredIntervalFactor 1 to treat metered networks like any other
+     */
+    public void setMeteredIntervalFactor(int meteredIntervalFactor) {
+        mMeteredIntervalFactor = meteredIntervalFactor;
+    }
+
+    public int getMeteredIntervalFactor() {
+        return mMeteredIntervalFactor;
+    }
+
+    @Override
+    public boolean canDispatch() {
+        return mRegistered ? mConnected : isConnected();
+    }
+
+    @Override
+    public long getDispatchInterval(long interval) {
+        if (interval <= 0)
+            return interval;
+        boolean stretch = mRegistered ? mMetered && !mCharging : isMetered() && !isCharging();
+        return stretch ? interval * mMeteredIntervalFactor : interval;
+    }
+
+    /**
+     * @return true if there is a network connection or if we can't tell
+     */
+    public boolean isConnected() {
+        NetworkInfo network;
+        try {
+            network = getActiveNetwork();
+        } catch (SecurityException e) {
+            // Without ACCESS_NETWORK_STATE we can't tell, so don't hold anything back
+            Logy.w(LOGGER_TAG, "Cannot read network state", e);
+            return true;
+        }
+        return network == null ? getConnectivityManager() == null : network.isConnected();
+    }
+
+    /**
+     * Anything but Wi-Fi and ethernet counts as metered,
+     * {@link ConnectivityManager#isActiveNetworkMetered()} needs API 16.
+     */
+    public boolean isMetered() {
+        NetworkInfo network;
+        try {
+            network = getActiveNetwork();
+        } catch (SecurityException e) {
+            return false;
+        }
+        if (network == null)
+            return false;
+        int type = network.getType();
+        return type != ConnectivityManager.TYPE_WIFI && type != ConnectivityManager.TYPE_ETHERNET;
+    }
+
+    public boolean isCharging() {
+        // The battery status is a sticky broadcast, no receiver needed to read it
+        Intent battery = mContext.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        return battery != null && battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+    }
+
+    private ConnectivityManager getConnectivityManager() {
+        return (ConnectivityManager) mContext.getSystemService(Context.CONNECTIVITY_SERVICE);
+    }
+
+    private NetworkInfo getActiveNetwork() {
+        ConnectivityManager connectivity = getConnectivityManager();
+        return connectivity != null ? connectivity.getActiveNetworkInfo() : null;
+    }
+}
@@ -0,0 +1,31 @@
+/*
+ * Android SDK for Piwik
+ *
+ * @link https://github.com/piwik/piwik-android-sdk
+ * @license https://github.com/piwik/piwik-sdk-android/blob/master/LICENSE BSD-3 Clause
+ */
+package org.piwik.sdk.dispatcher;
+
+/**
+ * What the {@link Dispatcher} does with new events once its memory queue is full.
+ * Also applies when failed events are put back into the queue for a retry.
+ */
+public enum OverflowPolicy {
+    /**
+     * Removes the oldest queued event to make room.
+     */
+    DROP_OLDEST,
+    /**
+     * Discards the new event.
+     */
+    DROP_NEWEST,
+    /**
+     * Appends the new event to the spill queue on disk, see {@link Dispatcher#setSpillQueue(EventDiskQueue)}.
+     * Without a spill queue this behaves like {@link #DROP_OLDEST}.
+     */
+    SPILL_TO_DISK,
+    /**
+     * Drops every second queued event, so what remains is still spread over the whole time span.
+     */
+    SAMPLE_DOWN
+}
@@ -10,9 +10,12 @@ import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.support.annotation.VisibleForTesting;
 
+import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.net.URL;
+import java.util.List;
 
 /**
  * Data that can be send to the backend API via the Dispatcher
@@ -20,7 +23,9 @@ import java.net.URL;
 @VisibleForTesting
 public class Packet {
     private final URL mTargetURL;
-    private final JSONObject mJSONObject;
+    private JSONObject mJSONObject;
+    private final List<String> mRequests;
+    private final String mAuthToken;
     private final long mTimeStamp;
 
     /**
@@ -36,6 +41,19 @@ public class Packet {
     public Packet(@NonNull URL targetURL, @Nullable JSONObject JSONObject) {
         mTargetURL = targetURL;
         mJSONObject = JSONObject;
+        mRequests = null;
+        mAuthToken = null;
+        mTimeStamp = System.currentTimeMillis();
+    }
+
+    /**
+     * Constructor for bulk POST requests, the body is streamed by {@link BulkRequestWriter}.
+     */
+    public Packet(@NonNull URL targetURL, @NonNull List<String> requests, @Nullable String authToken) {
+        mTargetURL = targetURL;
+        mJSONObject = null;
+        mRequests = requests;
+        mAuthToken = authToken;
         mTimeStamp = System.currentTimeMillis();
     }
 
@@ -45,13 +63,46 @@ public class Packet {
     }
 
     /**
+     * For bulk packets the json object is only built on demand, the dispatcher doesn't need it.
+     *
      * @return may be null if it is a GET request
      */
     @Nullable
-    public JSONObject getJSONObject() {
+    public synchronized JSONObject getJSONObject() {
+        if (mJSONObject == null && mRequests != null) {
+            try {
+                JSONObject params = new JSONObject();
+                params.put("requests", new JSONArray(mRequests));
+                if (mAuthToken != null)
+                    params.put("token_auth", mAuthToken);
+                mJSONObject = params;
+            } catch (JSONException e) {
+                return null;
+            }
+        }
         return mJSONObject;
     }
 
+    /**
+     * @return the queries of a bulk POST request, null for other packets
+     */
+    @Nullable
+    public List<String> getRequests() {
+        return mRequests;
+    }
+
+    @Nullable
+    public String getAuthToken() {
+        return mAuthToken;
+    }
+
+    /**
+     * @return true if this packet has a body and needs to be POSTed
+     */
+    public boolean isPost() {
+        return mRequests != null || mJSONObject != null;
+    }
+
     /**
      * A timestamp to use when replaying offline data
      */
@@ -0,0 +1,52 @@
+/*
+ * Android SDK for Piwik
+ *
+ * @link https://github.com/piwik/piwik-android-sdk
+ * @license https://github.com/piwik/piwik-sdk-android/blob/master/LICENSE BSD-3 Clause
+ */
+package org.piwik.sdk.dispatcher;
+
+/**
+ * Adapts the byte size of bulk pages to the connection.
+ * The budget grows while pages come back quickly and shrinks when pages fail or get slow,
+ * so that a page finishes within half of the timeout.
+ * Not threadsafe, the upload lanes share one budget, so callers synchronize on the instance.
+ */
+class PageBudget {
+    static final int MIN_BYTES = 2 * 1024;
+    static final int INITIAL_BYTES = 8 * 1024;
+    private int mBytes = INITIAL_BYTES;
+
+    /**
+     * @param maxBytes upper bound for the budget
+     * @return how many bytes the next page may have
+     */
+    int getBytes(int maxBytes) {
+        return Math.min(mBytes, maxBytes);
+    }
+
+    /**
+     * @param pageBytes size of the page that was sent
+     * @param rtt       how long sending it took, in milliseconds
+     * @param success   false if the page failed
+     * @param timeOut   the connection timeout in milliseconds, 0 for none
+     * @param maxBytes  upper bound for the budget
+     */
+    void onPageSent(int pageBytes, long rtt, boolean success, int timeOut, int maxBytes) {
+        long target = timeOut > 0 ? timeOut / 2 : Long.MAX_VALUE;
+        long bytes = Math.min(mBytes, maxBytes);
+        if (!success) {
+            bytes /= 2;
+        } else if (rtt > target) {
+            // Shrink to what the link managed to send within the target time
+            bytes = Math.min(bytes, pageBytes * target / rtt);
+        } else if (pageBytes >= bytes / 2) {
+            // Only pages that used the budget tell us whether a bigger one would fit
+            if (rtt < target / 4)
+                bytes *= 2;
+            else if (rtt < target / 2)
+                bytes += bytes / 4;
+        }
+        mBytes = (int) Math.max(Math.min(MIN_BYTES, maxBytes), Math.min(bytes, maxBytes));
+    }
+}
@@ -0,0 +1,20 @@
+/*
+ * Android SDK for Piwik
+ *
+ * @link https://github.com/piwik/piwik-android-sdk
+ * @license https://github.com/piwik/piwik-sdk-android/blob/master/LICENSE BSD-3 Clause
+ */
+package org.piwik.sdk.dispatcher;
+
+/**
+ * Measurement hook for the size of POST bodies, e.g. to check the savings of {@link Dispatcher#setGzipCompression(boolean)}.
+ * Called on the dispatcher thread, so keep it short.
+ */
+public interface PayloadSizeListener {
+    /**
+     * @param packet    the packet that was sent
+     * @param rawBytes  size of the UTF-8 encoded json body
+     * @param sentBytes size of the body that went over the wire, same as rawBytes when not compressed
+     */
+    void onPayloadWritten(Packet packet, int rawBytes, int sentBytes);
+}
@@ -0,0 +1,132 @@
+/*
+ * Android SDK for Piwik
+ *
+ * @link https://github.com/piwik/piwik-android-sdk
+ * @license https://github.com/piwik/piwik-sdk-android/blob/master/LICENSE BSD-3 Clause
+ */
+
+package org.piwik.sdk.dispatcher;
+
+import android.support.annotation.NonNull;
+
+/**
+ * Percent encodes UTF-8 straight into a {@link StringBuilder}.
+ * Gives the same result as {@link java.net.URLEncoder} with spaces as "%20" instead of "+",
+ * without the intermediate Strings, byte arrays and regex.
+ */
+public class PercentEncoder {
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+    // Characters that URLEncoder leaves as they are
+    private static final boolean[] SAFE = new boolean[128];
+
+    static {
+        for (char c = 'a'; c <= 'z'; c++)
+            SAFE[c] = true;
+        for (char c = 'A'; c <= 'Z'; c++)
+            SAFE[c] = true;
+        for (char c = '0'; c <= '9'; c++)
+            SAFE[c] = true;
+        SAFE['-'] = true;
+        SAFE['_'] = true;
+        SAFE['.'] = true;
+        SAFE['*'] = true;
+    }
+
+    /**
+     * @return true if {@link #encode(StringBuilder, String)} would append the value unchanged
+     */
+    public static boolean isSafe(@NonNull String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c >= 128 || !SAFE[c])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @param out   where the encoded value is appended to
+     * @param value raw value, null appends nothing
+     * @return out
+     */
+    public static StringBuilder encode(@NonNull StringBuilder out, String value) {
+        if (value == null)
+            return out;
+        final int length = value.length();
+        // Most keys and many values need no encoding at all
+        int i = 0;
+        while (i < length) {
+            char c = value.charAt(i);
+            if (c >= 128 || !SAFE[c])
+                break;
+            i++;
+        }
+        if (i == length)
+            return out.append(value);
+        out.append(value, 0, i);
+        for (; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < 128) {
+                if (SAFE[c])
+                    out.append(c);
+                else if (c == ' ')
+                    out.append("%20");
+                else
+                    appendByte(out, c);
+            } else if (c < 0x800) {
+                appendByte(out, 0xC0 | (c >> 6));
+                appendByte(out, 0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                appendByte(out, 0xF0 | (codePoint >> 18));
+                appendByte(out, 0x80 | ((codePoint >> 12) & 0x3F));
+                appendByte(out, 0x80 | ((codePoint >> 6) & 0x3F));
+                appendByte(out, 0x80 | (codePoint & 0x3F));
+            } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+                // Unpaired surrogates can't be UTF-8 encoded, the JDK replaces them with '?'
+                appendByte(out, '?');
+            } else {
+                appendByte(out, 0xE0 | (c >> 12));
+                appendByte(out, 0x80 | ((c >> 6) & 0x3F));
+                appendByte(out, 0x80 | (c & 0x3F));
+            }
+        }
+        return out;
+    }
+
+    /**
+     * @param value raw value
+     * @return the encoded value, "" for null
+     */
+    @NonNull
+    public static String encode(String value) {
+        if (value == null)
+            return "";
+        if (isSafe(value))
+            return value;
+        return encode(new StringBuilder(value.length() * 3), value).toString();
+    }
+
+    /**
+     * For values that are already UTF-8 encoded.
+     *
+     * @param out where the encoded bytes are appended to
+     * @return out
+     */
+    public static StringBuilder encode(@NonNull StringBuilder out, @NonNull byte[] utf8, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            int b = utf8[i] & 0xFF;
+            if (b < 128 && SAFE[b])
+                out.append((char) b);
+            else if (b == ' ')
+                out.append("%20");
+            else
+                appendByte(out, b);
+        }
+        return out;
+    }
+
+    private static void appendByte(StringBuilder out, int b) {
+        out.append('%').append(HEX[(b >> 4) & 0xF]).append(HEX[b & 0xF]);
+    }
+}
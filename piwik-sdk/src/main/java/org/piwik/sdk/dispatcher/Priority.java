@@ -0,0 +1,19 @@
+/*
+ * Android SDK for Piwik
+ *
+ * @link https://github.com/piwik/piwik-android-sdk
+ * @license https://github.com/piwik/piwik-sdk-android/blob/master/LICENSE BSD-3 Clause
+ */
+package org.piwik.sdk.dispatcher;
+
+/**
+ * Events are queued in separate lanes per priority, the dispatcher always sends the higher lanes first.
+ */
+public enum Priority {
+    NORMAL,
+    /**
+     * For the few events that must not get lost or delayed, e.g. crashes and orders.
+     * They skip ahead of queued normal events and by default are sent right away, see {@link Dispatcher#setHighPriorityFlush(boolean)}.
+     */
+    HIGH
+}
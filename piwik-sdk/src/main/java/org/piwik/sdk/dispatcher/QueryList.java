@@ -0,0 +1,64 @@
+/*
+ * Android SDK for Piwik
+ *
+ * @link https://github.com/piwik/piwik-android-sdk
+ * @license https://github.com/piwik/piwik-sdk-android/blob/master/LICENSE BSD-3 Clause
+ */
+package org.piwik.sdk.dispatcher;
+
+import java.util.AbstractList;
+import java.util.List;
+
+/**
+ * The queries of a batch of events, encoded only when a page asks for them.
+ * Each query is encoded once and kept until {@link #release(int)}, so only the pages in flight hold Strings.
+ * Not threadsafe, each upload lane uses its own list.
+ */
+class QueryList extends AbstractList<String> {
+    private final List<Event> mEvents;
+    private final String[] mQueries;
+    private int mReleased = 0;
+
+    QueryList(List<Event> events) {
+        mEvents = events;
+        mQueries = new String[events.size()];
+    }
+
+    @Override
+    public String get(int index) {
+        String query = mQueries[index];
+        if (query == null) {
+            query = mEvents.get(index).getQuery();
+            // Released queries are encoded again if asked for, but not kept
+            if (index >= mReleased)
+                mQueries[index] = query;
+        }
+        return query;
+    }
+
+    @Override
+    public int size() {
+        return mQueries.length;
+    }
+
+    /**
+     * Drops the encoded queries in front of the index, e.g. after their page was sent.
+     */
+    void release(int toIndex) {
+        for (int i = mReleased; i < toIndex; i++)
+            mQueries[i] = null;
+        mReleased = Math.max(mReleased, toIndex);
+    }
+
+    /**
+     * @return how many queries are currently kept encoded
+     */
+    int getEncodedCount() {
+        int count = 0;
+        for (String query : mQueries) {
+            if (query != null)
+                count++;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,21 @@
+/*
+ * Android SDK for Piwik
+ *
+ * @link https://github.com/piwik/piwik-android-sdk
+ * @license https://github.com/piwik/piwik-sdk-android/blob/master/LICENSE BSD-3 Clause
+ */
+package org.piwik.sdk.dispatcher;
+
+import android.support.annotation.NonNull;
+
+/**
+ * Delivers packets for the {@link Dispatcher}, see {@link Dispatcher#setTransport(Transport)}.
+ * Implementations are called from the dispatcher's background threads, possibly several at once.
+ */
+public interface Transport {
+    /**
+     * @param packet a single event or a page of events
+     * @return true if the packet was accepted, false to have its events retried later
+     */
+    boolean send(@NonNull Packet packet);
+}
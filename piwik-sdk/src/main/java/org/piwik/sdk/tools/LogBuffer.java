@@ -0,0 +1,127 @@
+/*
+ * Android SDK for Piwik
+ *
+ * @link https://github.com/piwik/piwik-android-sdk
+ * @license https://github.com/piwik/piwik-sdk-android/blob/master/LICENSE BSD-3 Clause
+ */
+
+package org.piwik.sdk.tools;
+
+import android.util.Log;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Fixed size ring buffer for the most recent log lines, see {@link Logy#setBufferSize(int)}.
+ * Only keeps references to the format and arguments, the text is built when the buffer gets dumped.
+ * Threadsafe.
+ */
+class LogBuffer {
+    private final long[] mTimes;
+    private final int[] mPriorities;
+    private final String[] mTags;
+    private final String[] mFormats;
+    private final int[] mArgCounts;
+    private final Object[] mArgs1;
+    private final Object[] mArgs2;
+    private final Throwable[] mThrowables;
+    private int mNext;
+    private int mSize;
+
+    LogBuffer(int capacity) {
+        mTimes = new long[capacity];
+        mPriorities = new int[capacity];
+        mTags = new String[capacity];
+        mFormats = new String[capacity];
+        mArgCounts = new int[capacity];
+        mArgs1 = new Object[capacity];
+        mArgs2 = new Object[capacity];
+        mThrowables = new Throwable[capacity];
+    }
+
+    int getCapacity() {
+        return mTimes.length;
+    }
+
+    /**
+     * @param priority  e.g. {@link Log#DEBUG}
+     * @param argCount  how many of arg1 and arg2 belong to the format, 0 means the format is the plain message
+     * @param throwable optional
+     */
+    synchronized void add(int priority, String tag, String format, int argCount, Object arg1, Object arg2, Throwable throwable) {
+        final int i = mNext;
+        mTimes[i] = System.currentTimeMillis();
+        mPriorities[i] = priority;
+        mTags[i] = tag;
+        mFormats[i] = format;
+        mArgCounts[i] = argCount;
+        mArgs1[i] = arg1;
+        mArgs2[i] = arg2;
+        mThrowables[i] = throwable;
+        mNext = (i + 1) % mTimes.length;
+        if (mSize < mTimes.length)
+            mSize++;
+    }
+
+    /**
+     * @return the buffered lines, oldest first, e.g. "05-13 18:53:20.000 D/PIWIK:Dispatcher: Dispatched 3 events."
+     */
+    synchronized List<String> dump() {
+        SimpleDateFormat timeFormat = new SimpleDateFormat("MM-dd HH:mm:ss.SSS", Locale.US);
+        List<String> lines = new ArrayList<>(mSize);
+        int i = (mNext - mSize + mTimes.length) % mTimes.length;
+        for (int n = 0; n < mSize; n++, i = (i + 1) % mTimes.length) {
+            StringBuilder line = new StringBuilder(128);
+            line.append(timeFormat.format(new Date(mTimes[i]))).append(' ')
+                    .append(getPriorityChar(mPriorities[i])).append('/')
+                    .append(mTags[i]).append(": ")
+                    .append(getMessage(i));
+            if (mThrowables[i] != null)
+                line.append('\n').append(Log.getStackTraceString(mThrowables[i]));
+            lines.add(line.toString());
+        }
+        return lines;
+    }
+
+    synchronized void clear() {
+        for (int i = 0; i < mTimes.length; i++) {
+            mTags[i] = null;
+            mFormats[i] = null;
+            mArgs1[i] = null;
+            mArgs2[i] = null;
+            mThrowables[i] = null;
+        }
+        mNext = 0;
+        mSize = 0;
+    }
+
+    private String getMessage(int i) {
+        switch (mArgCounts[i]) {
+            case 0:
+                return mFormats[i];
+            case 1:
+                return Logy.format(mFormats[i], mArgs1[i]);
+            default:
+                return Logy.format(mFormats[i], mArgs1[i], mArgs2[i]);
+        }
+    }
+
+    private static char getPriorityChar(int priority) {
+        switch (priority) {
+            case Log.VERBOSE:
+                return 'V';
+            case Log.DEBUG:
+                return 'D';
+            case Log.INFO:
+                return 'I';
+            case Log.WARN:
+                return 'W';
+            default:
+                return 'E';
+        }
+    }
+}
@@ -7,12 +7,21 @@
 
 package org.piwik.sdk.tools;
 
+import android.support.annotation.NonNull;
 import android.util.Log;
 
 import org.piwik.sdk.BuildConfig;
 
+import java.util.Collections;
+import java.util.List;
+
 /**
  * Wrapper class for {@link android.util.Log} that allows to fine tune what gets logged.
+ * <p>
+ * The overloads taking a format and arguments only format the message if it gets logged or dumped.
+ * They use fixed arguments instead of varargs, so no array is created either.
+ * Primitives passed as Object are still boxed on every call, the int overloads only box
+ * if the line is logged or buffered, e.g. {@code Logy.d(TAG, "Dispatched %d events.", count)}.
  */
 public class Logy {
     public static final int SILENT = -2;
@@ -23,46 +32,150 @@ public class Logy {
 
     public static int sLoglevel = BuildConfig.DEBUG ? VERBOSE : QUIET;
 
+    private static volatile LogBuffer sBuffer;
+
+    /**
+     * Keeps the most recent log lines in memory, independent of {@link #sLoglevel}, see {@link #dumpBuffer()}.
+     * Useful in release builds to find out what the SDK did before something went wrong.
+     *
+     * @param lines how many lines to keep, 0 to disable the buffer (default)
+     */
+    public static synchronized void setBufferSize(int lines) {
+        if (lines <= 0)
+            sBuffer = null;
+        else if (sBuffer == null || sBuffer.getCapacity() != lines)
+            sBuffer = new LogBuffer(lines);
+    }
+
+    /**
+     * @return the buffered lines, oldest first, empty if the buffer is disabled
+     */
+    @NonNull
+    public static List<String> dumpBuffer() {
+        LogBuffer buffer = sBuffer;
+        return buffer != null ? buffer.dump() : Collections.<String>emptyList();
+    }
+
+    public static void clearBuffer() {
+        LogBuffer buffer = sBuffer;
+        if (buffer != null)
+            buffer.clear();
+    }
+
     public static void v(String c, String s) {
-        if (sLoglevel >= VERBOSE) {
-            Log.v(c, s);
-        }
+        log(Log.VERBOSE, sLoglevel >= VERBOSE, c, s, 0, null, null, null);
+    }
+
+    public static void v(String c, String format, Object arg) {
+        log(Log.VERBOSE, sLoglevel >= VERBOSE, c, format, 1, arg, null, null);
+    }
+
+    public static void v(String c, String format, Object arg1, Object arg2) {
+        log(Log.VERBOSE, sLoglevel >= VERBOSE, c, format, 2, arg1, arg2, null);
     }
 
     public static void d(String c, String s) {
-        if (sLoglevel >= DEBUG) {
-            Log.d(c, s);
-        }
+        log(Log.DEBUG, sLoglevel >= DEBUG, c, s, 0, null, null, null);
+    }
+
+    public static void d(String c, String format, Object arg) {
+        log(Log.DEBUG, sLoglevel >= DEBUG, c, format, 1, arg, null, null);
+    }
+
+    public static void d(String c, String format, Object arg1, Object arg2) {
+        log(Log.DEBUG, sLoglevel >= DEBUG, c, format, 2, arg1, arg2, null);
+    }
+
+    public static void d(String c, String format, int arg) {
+        if (sLoglevel >= DEBUG || sBuffer != null)
+            log(Log.DEBUG, sLoglevel >= DEBUG, c, format, 1, arg, null, null);
     }
 
     public static void i(String c, String s) {
-        if (sLoglevel >= NORMAL) {
-            Log.i(c, s);
-        }
+        log(Log.INFO, sLoglevel >= NORMAL, c, s, 0, null, null, null);
+    }
+
+    public static void i(String c, String format, Object arg) {
+        log(Log.INFO, sLoglevel >= NORMAL, c, format, 1, arg, null, null);
     }
 
     public static void w(String c, String s) {
-        if (sLoglevel > QUIET) {
-            Log.w(c, s);
-        }
+        log(Log.WARN, sLoglevel > QUIET, c, s, 0, null, null, null);
     }
 
     public static void w(String c, String s, Throwable tr) {
-        if (sLoglevel > QUIET) {
-            Log.w(c, s, tr);
-        }
+        log(Log.WARN, sLoglevel > QUIET, c, s, 0, null, null, tr);
+    }
+
+    public static void w(String c, String format, Object arg) {
+        log(Log.WARN, sLoglevel > QUIET, c, format, 1, arg, null, null);
+    }
+
+    public static void w(String c, String format, Object arg1, Object arg2) {
+        log(Log.WARN, sLoglevel > QUIET, c, format, 2, arg1, arg2, null);
+    }
+
+    public static void w(String c, String format, int arg) {
+        if (sLoglevel > QUIET || sBuffer != null)
+            log(Log.WARN, sLoglevel > QUIET, c, format, 1, arg, null, null);
     }
 
     public static void e(String c, String s) {
-        if (sLoglevel != SILENT) {
-            Log.e(c, s);
-        }
+        log(Log.ERROR, sLoglevel != SILENT, c, s, 0, null, null, null);
     }
 
     public static void e(String c, String s, Throwable tr) {
-        if (sLoglevel != SILENT) {
-            Log.e(c, s, tr);
+        log(Log.ERROR, sLoglevel != SILENT, c, s, 0, null, null, tr);
+    }
+
+    public static void e(String c, String format, Object arg) {
+        log(Log.ERROR, sLoglevel != SILENT, c, format, 1, arg, null, null);
+    }
+
+    private static void log(int priority, boolean enabled, String tag, String format, int argCount, Object arg1, Object arg2, Throwable tr) {
+        LogBuffer buffer = sBuffer;
+        if (buffer != null)
+            buffer.add(priority, tag, format, argCount, arg1, arg2, tr);
+        if (!enabled)
+            return;
+        String message;
+        if (argCount == 0)
+            message = format;
+        else if (argCount == 1)
+            message = format(format, arg1);
+        else
+            message = format(format, arg1, arg2);
+        switch (priority) {
+            case Log.VERBOSE:
+                Log.v(tag, message);
+                break;
+            case Log.DEBUG:
+                Log.d(tag, message);
+                break;
+            case Log.INFO:
+                Log.i(tag, message);
+                break;
+            case Log.WARN:
+                if (tr != null)
+                    Log.w(tag, message, tr);
+                else
+                    Log.w(tag, message);
+                break;
+            default:
+                if (tr != null)
+                    Log.e(tag, message, tr);
+                else
+                    Log.e(tag, message);
+                break;
         }
     }
 
+    static String format(String format, Object... args) {
+        try {
+            return String.format(format, args);
+        } catch (RuntimeException e) {
+            // A broken log line should never break the caller
+            return format;
+        }
+    }
 }
@@ -0,0 +1,46 @@
+package org.piwik.sdk;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+
+@Config(emulateSdk = 18, manifest = Config.NONE)
+@RunWith(RobolectricTestRunner.class)
+public class DateTimeCacheTest {
+
+    @Test
+    public void testFormat() throws Exception {
+        DateTimeCache cache = new DateTimeCache();
+        long now = 1400000000000L;
+        String formatted = cache.format(now);
+        assertEquals(new SimpleDateFormat(DateTimeCache.PATTERN).format(new Date(now)), formatted);
+        // Same second, same String
+        assertSame(formatted, cache.format(now + 999));
+        assertNotSame(formatted, cache.format(now + 1000));
+        assertEquals(new SimpleDateFormat(DateTimeCache.PATTERN).format(new Date(now + 1000)), cache.format(now + 1000));
+    }
+
+    @Test
+    public void testTimeZoneChange() throws Exception {
+        TimeZone timeZone = TimeZone.getDefault();
+        try {
+            DateTimeCache cache = new DateTimeCache();
+            TimeZone.setDefault(TimeZone.getTimeZone("GMT+02:00"));
+            assertEquals("2014-05-13 18:53:20+0200", cache.format(1400000000000L));
+            TimeZone.setDefault(TimeZone.getTimeZone("GMT-05:00"));
+            assertEquals("2014-05-13 11:53:21-0500", cache.format(1400000001000L));
+        } finally {
+            TimeZone.setDefault(timeZone);
+        }
+    }
+}
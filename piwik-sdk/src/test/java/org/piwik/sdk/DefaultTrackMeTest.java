@@ -0,0 +1,41 @@
+package org.piwik.sdk;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+
+@Config(emulateSdk = 18, manifest = Config.NONE)
+@RunWith(RobolectricTestRunner.class)
+public class DefaultTrackMeTest {
+
+    @Test
+    public void testSnapshots() {
+        DefaultTrackMe trackMe = new DefaultTrackMe();
+        DefaultTrackMe.Snapshot empty = trackMe.getSnapshot();
+        assertNull(empty.get(QueryParams.USER_ID));
+        assertSame(empty, trackMe.getSnapshot());
+
+        trackMe.set(QueryParams.USER_ID, "user");
+        DefaultTrackMe.Snapshot snapshot = trackMe.getSnapshot();
+        assertEquals("user", snapshot.get(QueryParams.USER_ID));
+        // Earlier snapshots never change
+        assertNull(empty.get(QueryParams.USER_ID));
+
+        // All ways of setting a value publish a new snapshot
+        trackMe.trySet(QueryParams.TOTAL_NUMBER_OF_VISITS, 3);
+        assertEquals("3", trackMe.getSnapshot().get(QueryParams.TOTAL_NUMBER_OF_VISITS));
+        trackMe.set(QueryParams.FIRST_VISIT_TIMESTAMP, 1000L);
+        assertEquals("1000", trackMe.getSnapshot().get(QueryParams.FIRST_VISIT_TIMESTAMP));
+        trackMe.set(QueryParams.LANGUAGE.toString(), "de");
+        assertEquals("de", trackMe.getSnapshot().get(QueryParams.LANGUAGE));
+        trackMe.set(QueryParams.USER_ID, (String) null);
+        assertNull(trackMe.getSnapshot().get(QueryParams.USER_ID));
+        assertEquals("user", snapshot.get(QueryParams.USER_ID));
+    }
+}
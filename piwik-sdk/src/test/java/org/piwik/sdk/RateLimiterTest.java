@@ -0,0 +1,146 @@
+package org.piwik.sdk;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.piwik.sdk.dispatcher.Priority;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+
+@Config(emulateSdk = 18, manifest = Config.NONE)
+@RunWith(RobolectricTestRunner.class)
+public class RateLimiterTest {
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    public void testBurstAndRefill() {
+        RateLimiter limiter = new RateLimiter(5, 2);
+        long now = 1000 * SECOND;
+        for (int i = 0; i < 5; i++)
+            assertTrue(limiter.tryAcquire(null, now));
+        assertFalse(limiter.tryAcquire(null, now));
+        assertEquals(1, limiter.getRejectedCount());
+
+        // Two events per second refill
+        assertFalse(limiter.tryAcquire(null, now + SECOND / 4));
+        assertTrue(limiter.tryAcquire(null, now + SECOND / 2));
+        assertFalse(limiter.tryAcquire(null, now + SECOND / 2));
+
+        // A long pause refills up to the burst, not more
+        now += 100 * SECOND;
+        for (int i = 0; i < 5; i++)
+            assertTrue(limiter.tryAcquire(null, now));
+        assertFalse(limiter.tryAcquire(null, now));
+        assertEquals(4, limiter.getRejectedCount());
+    }
+
+    @Test
+    public void testPerCategory() {
+        RateLimiter limiter = new RateLimiter(2, 1).setPerCategory(true);
+        long now = -5 * SECOND;
+        assertTrue(limiter.tryAcquire("scroll", now));
+        assertTrue(limiter.tryAcquire("scroll", now));
+        assertFalse(limiter.tryAcquire("scroll", now));
+        // Other categories and uncategorized events are not affected
+        assertTrue(limiter.tryAcquire("purchase", now));
+        assertTrue(limiter.tryAcquire(null, now));
+
+        // The number of buckets is bounded
+        for (int i = 0; i < RateLimiter.MAX_CATEGORIES * 2; i++)
+            limiter.tryAcquire("random" + i, now);
+        assertFalse(limiter.tryAcquire("another", now));
+    }
+
+    @Test
+    public void testHighPriorityIsNotLimited() {
+        RateLimiter limiter = new RateLimiter(1, 0.001);
+        assertTrue(limiter.tryAcquire(new TrackMe()));
+        assertFalse(limiter.tryAcquire(new TrackMe()));
+        assertTrue(limiter.tryAcquire(new TrackMe().setPriority(Priority.HIGH)));
+    }
+
+    @Test
+    public void testConcurrentCallers() throws Exception {
+        final RateLimiter limiter = new RateLimiter(100, 0.001);
+        final AtomicInteger passed = new AtomicInteger();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 1000; i++) {
+                        if (limiter.tryAcquire(new TrackMe()))
+                            passed.incrementAndGet();
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+        assertEquals(100, passed.get());
+        assertEquals(3900, limiter.getRejectedCount());
+    }
+
+    @Test
+    public void testExtremeSettings() {
+        long now = Long.MAX_VALUE - SECOND;
+        // Interval and tolerance would overflow without clamping and reject everything
+        RateLimiter slow = new RateLimiter(3, 1e-12);
+        for (int i = 0; i < 3; i++)
+            assertTrue(slow.tryAcquire(null, now));
+        assertFalse(slow.tryAcquire(null, now));
+        assertFalse(slow.tryAcquire(null, now + 2 * SECOND));
+
+        RateLimiter huge = new RateLimiter(Integer.MAX_VALUE, 0.001);
+        for (int i = 0; i < 10000; i++)
+            assertTrue(huge.tryAcquire(null, now));
+
+        RateLimiter fast = new RateLimiter(1, Double.MAX_VALUE);
+        assertTrue(fast.tryAcquire(null, now));
+        assertTrue(fast.tryAcquire(null, now + 1));
+    }
+
+    @Test
+    public void testCoalescing() {
+        RateLimiter limiter = new RateLimiter(1, 0.001).setCoalescing(true);
+        TrackMe first = new TrackMe().set(QueryParams.EVENT_ACTION, "first");
+        assertTrue(limiter.tryAcquire(first));
+        assertNull(limiter.pollCoalesced(first));
+        assertFalse(limiter.tryAcquire(new TrackMe().set(QueryParams.EVENT_ACTION, "second")));
+        TrackMe third = new TrackMe().set(QueryParams.EVENT_ACTION, "third");
+        assertFalse(limiter.tryAcquire(third));
+        assertEquals(2, limiter.getRejectedCount());
+
+        // The latest of the rejected burst rides along with the next passing event
+        TrackMe high = new TrackMe().setPriority(Priority.HIGH);
+        assertTrue(limiter.tryAcquire(high));
+        assertNull(limiter.pollCoalesced(high));
+        TrackMe passed = new TrackMe();
+        assertSame(third, limiter.pollCoalesced(passed));
+        assertNull(limiter.pollCoalesced(passed));
+        assertEquals(1, limiter.getCoalescedCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidBurst() {
+        new RateLimiter(0, 1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidRate() {
+        new RateLimiter(1, Double.NaN);
+    }
+}
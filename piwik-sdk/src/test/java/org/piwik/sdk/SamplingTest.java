@@ -0,0 +1,95 @@
+package org.piwik.sdk;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+
+@Config(emulateSdk = 18, manifest = Config.NONE)
+@RunWith(RobolectricTestRunner.class)
+public class SamplingTest {
+
+    @Test
+    public void testEventClasses() {
+        Sampling sampling = new Sampling()
+                .setScreenRate(0.1)
+                .setEventRate(0.2)
+                .setEventRate("video", 0.3)
+                .setContentImpressionRate(0.4)
+                .setExceptionRate(0.5);
+        assertEquals(0.1, sampling.getRate(new TrackMe().set(QueryParams.ACTION_NAME, "screen")), 0);
+        assertEquals(0.2, sampling.getRate(new TrackMe().set(QueryParams.EVENT_CATEGORY, "music")), 0);
+        assertEquals(0.3, sampling.getRate(new TrackMe().set(QueryParams.EVENT_CATEGORY, "video")), 0);
+        assertEquals(0.4, sampling.getRate(new TrackMe().set(QueryParams.CONTENT_NAME, "ad")), 0);
+        assertEquals(1, sampling.getRate(new TrackMe().set(QueryParams.CONTENT_NAME, "ad").set(QueryParams.CONTENT_INTERACTION, "click")), 0);
+        assertEquals(0.5, sampling.getRate(new TrackMe().set(QueryParams.ACTION_NAME, "exception/x").set(QueryParams.EVENT_CATEGORY, "Exception")), 0);
+        assertEquals(1, sampling.getRate(new TrackMe().set(QueryParams.GOAL_ID, 1)), 0);
+        assertEquals(1, sampling.getRate(new TrackMe().set(QueryParams.DOWNLOAD, "http://example.com")), 0);
+        assertEquals(0.1, sampling.getRate(new TrackMe().set(QueryParams.URL_PATH, "/screen")), 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidRate() {
+        new Sampling().setScreenRate(1.5);
+    }
+
+    @Test
+    public void testDeterministic() {
+        for (int i = 0; i < 100; i++) {
+            String visitorId = Tracker.makeRandomVisitorId();
+            boolean sampled = Sampling.isSampled(visitorId, 0.5);
+            for (int j = 0; j < 10; j++)
+                assertEquals(sampled, Sampling.isSampled(visitorId, 0.5));
+            // Visitors in a small sample are also in every larger one
+            if (Sampling.isSampled(visitorId, 0.1))
+                assertTrue(sampled);
+        }
+        assertTrue(Sampling.isSampled("anything", 1));
+        assertFalse(Sampling.isSampled("anything", 0));
+        assertFalse(Sampling.isSampled(null, 0.5));
+    }
+
+    @Test
+    public void testDistribution() {
+        int sampled = 0;
+        for (int i = 0; i < 10000; i++) {
+            if (Sampling.isSampled(String.format("%016x", i), 0.25))
+                sampled++;
+        }
+        assertTrue(sampled > 2300 && sampled < 2700);
+    }
+
+    @Test
+    public void testRateIsAttached() {
+        Sampling sampling = new Sampling().setScreenRate(0.5);
+        String visitorId = null;
+        for (int i = 0; visitorId == null; i++) {
+            if (Sampling.isSampled(String.format("%016x", i), 0.5))
+                visitorId = String.format("%016x", i);
+        }
+        TrackMe screen = new TrackMe().set(QueryParams.ACTION_NAME, "screen");
+        assertTrue(sampling.sample(screen, visitorId));
+        assertEquals("0.5", screen.get(QueryParams.SAMPLING_RATE));
+
+        TrackMe goal = new TrackMe().set(QueryParams.GOAL_ID, 1);
+        assertTrue(sampling.sample(goal, visitorId));
+        assertNull(goal.get(QueryParams.SAMPLING_RATE));
+    }
+
+    @Test
+    public void testValuableEventsIgnoreTheEventRate() {
+        Sampling sampling = new Sampling().setEventRate(0).setEventRate("Application", 0);
+        TrackMe download = new TrackMe()
+                .set(QueryParams.EVENT_CATEGORY, "Application")
+                .set(QueryParams.EVENT_ACTION, "downloaded")
+                .set(QueryParams.DOWNLOAD, "http://example.com/app.apk");
+        assertEquals(1d, sampling.getRate(download), 0d);
+        assertEquals(0d, sampling.getRate(new TrackMe().set(QueryParams.EVENT_CATEGORY, "Application")), 0d);
+    }
+}
@@ -6,29 +6,46 @@
  */
 package org.piwik.sdk;
 
+import android.support.annotation.NonNull;
 import android.util.Log;
 
 import org.json.JSONArray;
 import org.json.JSONObject;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
 import org.piwik.sdk.dispatcher.Dispatcher;
+import org.piwik.sdk.dispatcher.DispatcherMetrics;
+import org.piwik.sdk.dispatcher.EventDiskQueue;
+import org.piwik.sdk.dispatcher.MetricsListener;
+import org.piwik.sdk.dispatcher.OverflowPolicy;
 import org.piwik.sdk.dispatcher.Packet;
+import org.piwik.sdk.dispatcher.Priority;
 import org.robolectric.Robolectric;
 import org.robolectric.annotation.Config;
 
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Random;
 import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 
@@ -37,6 +54,9 @@ import static org.junit.Assert.assertTrue;
 @RunWith(FullEnvTestRunner.class)
 public class TestDispatcher {
 
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
     public Tracker createTracker() throws MalformedURLException {
         TestPiwikApplication app = (TestPiwikApplication) Robolectric.application;
         return Piwik.getInstance(Robolectric.application).newTracker(app.getTrackerUrl(), app.getSiteId());
@@ -192,6 +212,460 @@ public class TestDispatcher {
         checkForMIAs(threadCount * queryCount, createdEvents, tracker.getDispatcher().getDryRunOutput());
     }
 
+    @Test
+    public void testPersistentQueueDispatch() throws Exception {
+        final Tracker tracker = createTracker();
+        tracker.setPersistentQueue(true);
+        assertTrue(tracker.isPersistentQueue());
+        tracker.setDispatchInterval(20);
+
+        final int threadCount = 5;
+        final int queryCount = 20;
+        final List<String> createdEvents = Collections.synchronizedList(new ArrayList<String>());
+        launchTestThreads(tracker, threadCount, queryCount, createdEvents);
+
+        checkForMIAs(threadCount * queryCount, createdEvents, tracker.getDispatcher().getDryRunOutput());
+        tracker.setPersistentQueue(false);
+        assertFalse(tracker.isPersistentQueue());
+    }
+
+    private Dispatcher createFailingDispatcher(final int failures, final List<Packet> sent) throws Exception {
+        final AtomicInteger calls = new AtomicInteger();
+        return new Dispatcher(getPiwik(), new URL("http://example.com/piwik.php"), null) {
+            @Override
+            public boolean dispatch(@NonNull Packet packet) {
+                if (calls.incrementAndGet() <= failures)
+                    return false;
+                sent.add(packet);
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Forces one pass of the dispatch loop and waits until it's done.
+     */
+    private static void dispatchAndWait(Dispatcher dispatcher) throws InterruptedException {
+        dispatcher.forceDispatch();
+        assertTrue(dispatcher.awaitTermination(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testFailedPagesAreRequeued() throws Exception {
+        List<Packet> sent = Collections.synchronizedList(new ArrayList<Packet>());
+        Dispatcher dispatcher = createFailingDispatcher(2, sent);
+        dispatcher.setDispatchInterval(-1);
+        List<String> createdEvents = new ArrayList<>();
+        for (int i = 0; i < 30; i++) {
+            dispatcher.submit("?event=" + i);
+            createdEvents.add("http://example.com/piwik.php?event=" + i);
+        }
+
+        dispatchAndWait(dispatcher);
+        dispatchAndWait(dispatcher);
+        assertEquals(0, sent.size());
+
+        dispatchAndWait(dispatcher);
+        // Nothing lost and the original order was kept
+        assertEquals(createdEvents, getFlattenedQueries(sent));
+    }
+
+    @Test
+    public void testMaxAttempts() throws Exception {
+        List<Packet> sent = Collections.synchronizedList(new ArrayList<Packet>());
+        Dispatcher dispatcher = createFailingDispatcher(2, sent);
+        dispatcher.setDispatchInterval(-1);
+        dispatcher.setMaxAttempts(2);
+        dispatcher.submit("?event=1");
+
+        dispatchAndWait(dispatcher);
+        dispatchAndWait(dispatcher);
+        dispatchAndWait(dispatcher);
+        assertEquals(0, sent.size());
+    }
+
+    @Test
+    public void testMaxEventAge() throws Exception {
+        List<Packet> sent = Collections.synchronizedList(new ArrayList<Packet>());
+        Dispatcher dispatcher = createFailingDispatcher(1, sent);
+        dispatcher.setDispatchInterval(-1);
+        dispatcher.setMaxEventAge(0);
+        dispatcher.submit("?event=1");
+
+        dispatchAndWait(dispatcher);
+        dispatchAndWait(dispatcher);
+        assertEquals(0, sent.size());
+    }
+
+    private List<String> submitAndDispatch(Dispatcher dispatcher, List<Packet> sent, int count) throws Exception {
+        for (int i = 0; i < count; i++)
+            dispatcher.submit("?event=" + i);
+        dispatchAndWait(dispatcher);
+        List<String> events = new ArrayList<>();
+        for (String query : getFlattenedQueries(sent))
+            events.add(query.substring(query.indexOf('=') + 1));
+        return events;
+    }
+
+    @Test
+    public void testOverflowDropOldest() throws Exception {
+        List<Packet> sent = Collections.synchronizedList(new ArrayList<Packet>());
+        Dispatcher dispatcher = createFailingDispatcher(0, sent);
+        dispatcher.setDispatchInterval(-1);
+        dispatcher.setMaxQueueSize(5);
+        assertEquals(OverflowPolicy.DROP_OLDEST, dispatcher.getOverflowPolicy());
+        assertEquals(Arrays.asList("5", "6", "7", "8", "9"), submitAndDispatch(dispatcher, sent, 10));
+        assertEquals(5, dispatcher.getDroppedEventCount());
+    }
+
+    @Test
+    public void testOverflowDropNewest() throws Exception {
+        List<Packet> sent = Collections.synchronizedList(new ArrayList<Packet>());
+        Dispatcher dispatcher = createFailingDispatcher(0, sent);
+        dispatcher.setDispatchInterval(-1);
+        dispatcher.setMaxQueueSize(5);
+        dispatcher.setOverflowPolicy(OverflowPolicy.DROP_NEWEST);
+        assertEquals(Arrays.asList("0", "1", "2", "3", "4"), submitAndDispatch(dispatcher, sent, 10));
+        assertEquals(5, dispatcher.getDroppedEventCount());
+    }
+
+    @Test
+    public void testOverflowSampleDown() throws Exception {
+        List<Packet> sent = Collections.synchronizedList(new ArrayList<Packet>());
+        Dispatcher dispatcher = createFailingDispatcher(0, sent);
+        dispatcher.setDispatchInterval(-1);
+        dispatcher.setMaxQueueSize(4);
+        dispatcher.setOverflowPolicy(OverflowPolicy.SAMPLE_DOWN);
+        assertEquals(Arrays.asList("0", "2", "4", "5"), submitAndDispatch(dispatcher, sent, 6));
+        assertEquals(2, dispatcher.getDroppedEventCount());
+    }
+
+    @Test
+    public void testOverflowSpillToDisk() throws Exception {
+        List<Packet> sent = Collections.synchronizedList(new ArrayList<Packet>());
+        Dispatcher dispatcher = createFailingDispatcher(0, sent);
+        dispatcher.setDispatchInterval(-1);
+        dispatcher.setMaxQueueSize(5);
+        dispatcher.setOverflowPolicy(OverflowPolicy.SPILL_TO_DISK);
+        dispatcher.setSpillQueue(new EventDiskQueue(mFolder.newFolder()));
+        assertEquals(Arrays.asList("0", "1", "2", "3", "4", "5", "6", "7", "8", "9"), submitAndDispatch(dispatcher, sent, 10));
+        assertEquals(0, dispatcher.getDroppedEventCount());
+        assertEquals(5, dispatcher.getSpilledEventCount());
+        assertTrue(dispatcher.getSpillQueue().isEmpty());
+    }
+
+    /**
+     * Fails the first {@code failures} sends, each one submits five new events while the page is in flight.
+     */
+    private Dispatcher createBusyDispatcher(final int failures, final List<Packet> sent) throws Exception {
+        final AtomicInteger calls = new AtomicInteger();
+        final AtomicInteger submitted = new AtomicInteger();
+        return new Dispatcher(getPiwik(), new URL("http://example.com/piwik.php"), null) {
+            @Override
+            public boolean dispatch(@NonNull Packet packet) {
+                if (calls.incrementAndGet() > failures) {
+                    sent.add(packet);
+                    return true;
+                }
+                for (int i = 0; i < 5; i++)
+                    submit("?event=" + (5 + submitted.getAndIncrement()));
+                return false;
+            }
+        };
+    }
+
+    @Test
+    public void testRetriesRespectQueueLimit() throws Exception {
+        List<Packet> sent = Collections.synchronizedList(new ArrayList<Packet>());
+        Dispatcher dispatcher = createBusyDispatcher(Integer.MAX_VALUE, sent);
+        dispatcher.setDispatchInterval(-1);
+        dispatcher.setMaxQueueSize(5);
+        for (int i = 0; i < 5; i++)
+            dispatcher.submit("?event=" + i);
+        for (int round = 0; round < 4; round++) {
+            dispatchAndWait(dispatcher);
+            // The failed page comes back on top of the events submitted meanwhile
+            assertEquals(5, dispatcher.getMetrics().getQueueDepth());
+        }
+        // The oldest failed events made room for the newer ones
+        assertEquals(20, dispatcher.getDroppedEventCount());
+        assertEquals(0, sent.size());
+    }
+
+    @Test
+    public void testRetriesSpillToDisk() throws Exception {
+        List<Packet> sent = Collections.synchronizedList(new ArrayList<Packet>());
+        Dispatcher dispatcher = createBusyDispatcher(1, sent);
+        dispatcher.setDispatchInterval(-1);
+        dispatcher.setMaxQueueSize(5);
+        dispatcher.setOverflowPolicy(OverflowPolicy.SPILL_TO_DISK);
+        EventDiskQueue spillQueue = new EventDiskQueue(mFolder.newFolder());
+        dispatcher.setSpillQueue(spillQueue);
+        for (int i = 0; i < 5; i++)
+            dispatcher.submit("?event=" + i);
+        dispatchAndWait(dispatcher);
+        assertEquals(5, dispatcher.getMetrics().getQueueDepth());
+        assertEquals(5, dispatcher.getSpilledEventCount());
+        assertFalse(spillQueue.isEmpty());
+
+        dispatchAndWait(dispatcher);
+        List<String> events = new ArrayList<>();
+        for (String query : getFlattenedQueries(sent))
+            events.add(query.substring(query.indexOf('=') + 1));
+        // Nothing lost and the order survived the detour over the disk
+        assertEquals(Arrays.asList("0", "1", "2", "3", "4", "5", "6", "7", "8", "9"), events);
+        assertEquals(0, dispatcher.getDroppedEventCount());
+    }
+
+    @Test
+    public void testTrackerQueueLimit() throws Exception {
+        Tracker tracker = createTracker();
+        tracker.setQueueLimit(100, OverflowPolicy.SPILL_TO_DISK);
+        assertEquals(100, tracker.getDispatcher().getMaxQueueSize());
+        assertNotNull(tracker.getDispatcher().getSpillQueue());
+        tracker.setQueueLimit(100, OverflowPolicy.DROP_NEWEST);
+        assertNull(tracker.getDispatcher().getSpillQueue());
+    }
+
+    private static int countEvents(List<Packet> packets) {
+        int events = 0;
+        for (Packet packet : new ArrayList<>(packets))
+            events += packet.getRequests() != null ? packet.getRequests().size() : 1;
+        return events;
+    }
+
+    /**
+     * Polls until the expected number of events was sent, fails after 5 seconds.
+     */
+    private static void awaitEvents(List<Packet> packets, int expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (countEvents(packets) < expected && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertEquals(expected, countEvents(packets));
+    }
+
+    @Test
+    public void testInjectedExecutorIsReused() throws Exception {
+        final List<Thread> threads = Collections.synchronizedList(new ArrayList<Thread>());
+        final List<Packet> sent = Collections.synchronizedList(new ArrayList<Packet>());
+        Dispatcher dispatcher = new Dispatcher(getPiwik(), new URL("http://example.com/piwik.php"), null) {
+            @Override
+            public boolean dispatch(@NonNull Packet packet) {
+                threads.add(Thread.currentThread());
+                sent.add(packet);
+                return true;
+            }
+        };
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        dispatcher.setExecutor(executor);
+        assertSame(executor, dispatcher.getExecutor());
+        dispatcher.setDispatchInterval(0);
+
+        for (int burst = 0; burst < 3; burst++) {
+            dispatcher.submit("?burst=" + burst);
+            awaitEvents(sent, burst + 1);
+            assertTrue(dispatcher.awaitTermination(5, TimeUnit.SECONDS));
+        }
+        assertEquals(3, countEvents(sent));
+        assertEquals(3, dispatcher.getLaunchCount());
+        assertTrue(dispatcher.getWakeupCount() >= 3);
+        assertTrue(dispatcher.getWakeupTimeNanos() > 0);
+        // All bursts ran on the one thread of the executor
+        assertEquals(1, new HashSet<>(threads).size());
+        executor.shutdown();
+    }
+
+    @Test
+    public void testStopAndStart() throws Exception {
+        List<Packet> sent = Collections.synchronizedList(new ArrayList<Packet>());
+        Dispatcher dispatcher = createFailingDispatcher(0, sent);
+        dispatcher.setDispatchInterval(60 * 1000);
+        dispatcher.submit("?event=1");
+        assertEquals(0, sent.size());
+
+        // Stopping flushes without waiting for the interval
+        dispatcher.stop();
+        assertTrue(dispatcher.isStopped());
+        assertTrue(dispatcher.awaitTermination(1, TimeUnit.SECONDS));
+        assertEquals(1, countEvents(sent));
+
+        dispatcher.submit("?event=2");
+        assertFalse(dispatcher.forceDispatch());
+        // Nothing was launched, so nothing can be sending in the background either
+        assertTrue(dispatcher.awaitTermination(0, TimeUnit.SECONDS));
+        assertEquals(1, countEvents(sent));
+
+        dispatcher.setDispatchInterval(0);
+        dispatcher.start();
+        assertFalse(dispatcher.isStopped());
+        awaitEvents(sent, 2);
+        assertTrue(dispatcher.awaitTermination(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testParallelUploadsKeepVisitorOrder() throws Exception {
+        final List<Packet> sent = Collections.synchronizedList(new ArrayList<Packet>());
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger maxInFlight = new AtomicInteger();
+        Dispatcher dispatcher = new Dispatcher(getPiwik(), new URL("http://example.com/piwik.php"), null) {
+            @Override
+            public boolean dispatch(@NonNull Packet packet) {
+                int current = inFlight.incrementAndGet();
+                while (maxInFlight.get() < current)
+                    maxInFlight.set(current);
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException ignore) {
+                }
+                sent.add(packet);
+                inFlight.decrementAndGet();
+                return true;
+            }
+        };
+        dispatcher.setDispatchInterval(-1);
+        dispatcher.setMaxPageEvents(5);
+        dispatcher.setMaxParallelUploads(3);
+        for (int i = 0; i < 30; i++) {
+            for (int visitor = 0; visitor < 4; visitor++)
+                dispatcher.submit("?idsite=1&_id=visitor" + visitor + "&event=" + i);
+        }
+
+        dispatchAndWait(dispatcher);
+        assertTrue(maxInFlight.get() > 1);
+        assertTrue(maxInFlight.get() <= 3);
+
+        List<String> queries = getFlattenedQueries(new ArrayList<>(sent));
+        assertEquals(120, queries.size());
+        for (int visitor = 0; visitor < 4; visitor++) {
+            int expected = 0;
+            for (String query : queries) {
+                if (query.contains("_id=visitor" + visitor + "&"))
+                    assertTrue(query.endsWith("&event=" + expected++));
+            }
+            assertEquals(30, expected);
+        }
+    }
+
+    @Test
+    public void testHighPriorityIsSentFirst() throws Exception {
+        List<Packet> sent = Collections.synchronizedList(new ArrayList<Packet>());
+        Dispatcher dispatcher = createFailingDispatcher(0, sent);
+        dispatcher.setDispatchInterval(-1);
+        dispatcher.setHighPriorityFlush(false);
+        dispatcher.submit("?event=0");
+        dispatcher.submit("?event=1");
+        dispatcher.submit("?event=2", Priority.HIGH);
+        dispatcher.submit("?event=3");
+        dispatcher.submit("?event=4", Priority.HIGH);
+        // Without the flush high priority events don't launch the loop
+        assertEquals(0, dispatcher.getLaunchCount());
+        assertEquals(0, sent.size());
+
+        dispatchAndWait(dispatcher);
+        List<String> events = new ArrayList<>();
+        for (String query : getFlattenedQueries(sent))
+            events.add(query.substring(query.indexOf('=') + 1));
+        assertEquals(Arrays.asList("2", "4", "0", "1", "3"), events);
+    }
+
+    @Test
+    public void testHighPriorityFlush() throws Exception {
+        List<Packet> sent = Collections.synchronizedList(new ArrayList<Packet>());
+        Dispatcher dispatcher = createFailingDispatcher(0, sent);
+        assertTrue(dispatcher.isHighPriorityFlush());
+        dispatcher.setDispatchInterval(60 * 1000);
+        dispatcher.submit("?event=0");
+        assertEquals(0, sent.size());
+
+        // Doesn't wait for the interval and takes the queued normal events along
+        dispatcher.submit("?event=1", Priority.HIGH);
+        awaitEvents(sent, 2);
+        dispatcher.stop();
+    }
+
+    @Test
+    public void testHighPriorityDiskQueue() throws Exception {
+        List<Packet> sent = Collections.synchronizedList(new ArrayList<Packet>());
+        Dispatcher dispatcher = createFailingDispatcher(1, sent);
+        dispatcher.setDispatchInterval(-1);
+        dispatcher.setHighPriorityFlush(false);
+        EventDiskQueue diskQueue = new EventDiskQueue(mFolder.newFolder());
+        dispatcher.setDiskQueue(Priority.HIGH, diskQueue);
+        assertSame(diskQueue, dispatcher.getDiskQueue(Priority.HIGH));
+        assertNull(dispatcher.getDiskQueue());
+        dispatcher.submit("?event=1", Priority.HIGH);
+        assertFalse(diskQueue.isEmpty());
+        // The fsync runs on the executor, not on the submitting thread
+        long deadline = System.currentTimeMillis() + 5000;
+        while (diskQueue.needsSync() && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertFalse(diskQueue.needsSync());
+
+        // The failed page goes back to the high priority lane on disk
+        dispatchAndWait(dispatcher);
+        assertEquals(0, sent.size());
+        assertFalse(diskQueue.isEmpty());
+
+        dispatchAndWait(dispatcher);
+        assertEquals(1, countEvents(sent));
+        assertTrue(diskQueue.isEmpty());
+    }
+
+    @Test
+    public void testTrackerPriorities() throws Exception {
+        Tracker tracker = createTracker();
+        tracker.setDispatchInterval(-1);
+        tracker.getDispatcher().setHighPriorityFlush(false);
+        tracker.trackScreenView("/screen");
+        tracker.trackException(new RuntimeException(), "description", false);
+        tracker.dispatch();
+        assertTrue(tracker.getDispatcher().awaitTermination(5, TimeUnit.SECONDS));
+        List<String> queries = getFlattenedQueries(new ArrayList<>(tracker.getDispatcher().getDryRunOutput()));
+        assertEquals(2, queries.size());
+        assertTrue(queries.get(0).contains("e_c=Exception"));
+        assertEquals(Priority.NORMAL, new TrackMe().getPriority());
+    }
+
+    @Test
+    public void testMetrics() throws Exception {
+        List<Packet> sent = Collections.synchronizedList(new ArrayList<Packet>());
+        Dispatcher dispatcher = createFailingDispatcher(1, sent);
+        final List<DispatcherMetrics> exported = Collections.synchronizedList(new ArrayList<DispatcherMetrics>());
+        dispatcher.setMetricsListener(new MetricsListener() {
+            @Override
+            public void onMetrics(DispatcherMetrics metrics) {
+                exported.add(metrics);
+            }
+        });
+        dispatcher.setDispatchInterval(-1);
+        dispatcher.setMaxQueueSize(3);
+        dispatcher.setMaxAttempts(2);
+        for (int i = 0; i < 5; i++)
+            dispatcher.submit("?event=" + i);
+
+        DispatcherMetrics metrics = dispatcher.getMetrics();
+        assertEquals(5, metrics.getEnqueuedCount());
+        assertEquals(2, metrics.getDroppedCount());
+        assertEquals(3, metrics.getQueueDepth());
+        assertEquals(0, metrics.getDiskQueueBytes());
+
+        dispatchAndWait(dispatcher);
+        assertEquals(1, exported.size());
+        assertEquals(0, metrics.getSentCount());
+        assertEquals(3, metrics.getQueueDepth());
+
+        // Let the requeued events age so the delivery latency is measurable
+        Thread.sleep(100);
+        dispatchAndWait(dispatcher);
+        assertEquals(2, exported.size());
+        assertSame(metrics, exported.get(1));
+        assertEquals(3, metrics.getSentCount());
+        assertEquals(0, metrics.getQueueDepth());
+        assertEquals(2, metrics.getPageLatency().getCount());
+        assertEquals(3, metrics.getDeliveryLatency().getCount());
+        assertTrue(metrics.getDeliveryLatency().getMax() >= 100);
+    }
+
     public static void checkForMIAs(int expectedEvents, List<String> createdEvents, List<Packet> dryRunOutput) throws Exception {
         int previousEventCount = 0;
         int previousFlatQueryCount = 0;
@@ -0,0 +1,232 @@
+package org.piwik.sdk;
+
+import android.util.Log;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.piwik.sdk.dispatcher.CompactQuery;
+import org.piwik.sdk.plugins.CustomDimensions;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.HashMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+
+@Config(emulateSdk = 18, manifest = Config.NONE)
+@RunWith(RobolectricTestRunner.class)
+public class TrackMeTest {
+
+    @Test
+    public void testSetGetHas() {
+        TrackMe trackMe = new TrackMe();
+        assertFalse(trackMe.has(QueryParams.ACTION_NAME));
+        assertNull(trackMe.get(QueryParams.ACTION_NAME));
+
+        trackMe.set(QueryParams.ACTION_NAME, "name");
+        assertTrue(trackMe.has(QueryParams.ACTION_NAME));
+        assertEquals("name", trackMe.get(QueryParams.ACTION_NAME));
+
+        // Empty values are ignored, null removes
+        trackMe.set(QueryParams.ACTION_NAME, "");
+        assertEquals("name", trackMe.get(QueryParams.ACTION_NAME));
+        trackMe.set(QueryParams.ACTION_NAME, (String) null);
+        assertFalse(trackMe.has(QueryParams.ACTION_NAME));
+
+        trackMe.trySet(QueryParams.GOAL_ID, 1);
+        trackMe.trySet(QueryParams.GOAL_ID, 2);
+        assertEquals("1", trackMe.get(QueryParams.GOAL_ID));
+        trackMe.set(QueryParams.REVENUE, 1.5f).set(QueryParams.SESSION_START, 3L);
+        assertEquals("1.5", trackMe.get(QueryParams.REVENUE));
+        assertEquals("3", trackMe.get(QueryParams.SESSION_START));
+    }
+
+    @Test
+    public void testStringKeys() {
+        TrackMe trackMe = new TrackMe();
+        // Known names end up in the same slot as the enum
+        trackMe.set(QueryParams.USER_ID.toString(), "user");
+        assertEquals("user", trackMe.get(QueryParams.USER_ID));
+
+        CustomDimensions dimensions = new CustomDimensions();
+        dimensions.set(1, "foo").set(2, "bar");
+        dimensions.set(QueryParams.ACTION_NAME, "name");
+        String query = dimensions.build();
+        assertTrue(query.startsWith("?"));
+        assertTrue(query.contains("dimension1=foo"));
+        assertTrue(query.contains("dimension2=bar"));
+        assertTrue(query.contains("action_name=name"));
+
+        dimensions.set(1, null);
+        assertFalse(dimensions.build().contains("dimension1"));
+    }
+
+    @Test
+    public void testBuild() {
+        assertEquals("", new TrackMe().build());
+
+        TrackMe trackMe = new TrackMe()
+                .set(QueryParams.ACTION_NAME, "a b&c")
+                .set(QueryParams.SITE_ID, 1);
+        String query = trackMe.build();
+        assertTrue(query.startsWith("?"));
+        HashMap<String, String> params = new HashMap<>();
+        for (String pair : query.substring(1).split("&")) {
+            String[] parts = pair.split("=");
+            params.put(parts[0], parts[1]);
+        }
+        assertEquals(2, params.size());
+        assertEquals("a%20b%26c", params.get("action_name"));
+        assertEquals("1", params.get("idsite"));
+        // Stable order between builds
+        assertEquals(query, trackMe.build());
+    }
+
+    @Test
+    public void testBuildWithDefaults() {
+        DefaultParams defaults = new DefaultParams(1, new String[]{"1", "1", "1", "0", "visitor id", null, null});
+        CustomDimensions dimensions = new CustomDimensions();
+        dimensions.set(1, "foo");
+        TrackMe trackMe = dimensions;
+        for (int i = 0; i < DefaultParams.PARAMS.length; i++)
+            trackMe.set(DefaultParams.PARAMS[i], defaults.getValue(i));
+        trackMe.set(QueryParams.URL_PATH, "http://example.com/path");
+        assertEquals(trackMe.build(), trackMe.build(defaults));
+        assertTrue(trackMe.build(defaults).startsWith("?" + defaults.getEncoded() + "&"));
+    }
+
+    @Test
+    public void testBuildCompact() {
+        assertEquals("", new TrackMe().buildCompact().toQuery());
+
+        DefaultParams defaults = new DefaultParams(1, new String[]{"1", "1", "1", "0", "visitor id", "user 1", null});
+        CustomDimensions dimensions = new CustomDimensions();
+        dimensions.set(1, "foo bar");
+        TrackMe trackMe = dimensions;
+        for (int i = 0; i < DefaultParams.PARAMS.length; i++)
+            trackMe.set(DefaultParams.PARAMS[i], defaults.getValue(i));
+        trackMe.set(QueryParams.ACTION_NAME, "Ä&€😀\ud83d");
+        trackMe.setScreenCustomVariable(1, "name", "value");
+        CompactQuery query = trackMe.buildCompact();
+        assertEquals(trackMe.build(), query.toQuery());
+        assertEquals(trackMe.build(defaults), query.toQuery());
+        assertEquals(query, trackMe.buildCompact(defaults));
+        assertEquals("user 1", query.get(QueryParams.USER_ID));
+        assertEquals("Ä&€😀?", query.get(QueryParams.ACTION_NAME));
+        assertNull(query.get(QueryParams.URL_PATH));
+
+        // A changed default can't use the prebuilt ones
+        trackMe.set(QueryParams.USER_ID, "user 2");
+        assertEquals(trackMe.build(), trackMe.buildCompact(defaults).toQuery());
+        assertEquals("user 2", trackMe.buildCompact(defaults).get(QueryParams.USER_ID));
+    }
+
+    @Test
+    public void testCompactQueueSize() {
+        final int events = 10000;
+        TrackMe trackMe = new TrackMe()
+                .set(QueryParams.SITE_ID, 1)
+                .set(QueryParams.RECORD, 1)
+                .set(QueryParams.API_VERSION, 1)
+                .set(QueryParams.SEND_IMAGE, 0)
+                .set(QueryParams.VISITOR_ID, "4c5a6b2f0e8d9c71")
+                .set(QueryParams.URL_PATH, "http://com.example.app/screen/settings/notifications")
+                .set(QueryParams.ACTION_NAME, "Settings / Notifications")
+                .set(QueryParams.SCREEN_RESOLUTION, "1080x1920")
+                .set(QueryParams.USER_AGENT, "Dalvik/2.1.0 (Linux; U; Android 7.0; SM-G930F Build/NRD90M)")
+                .set(QueryParams.LANGUAGE, "de")
+                .set(QueryParams.FIRST_VISIT_TIMESTAMP, 1476800000L)
+                .set(QueryParams.TOTAL_NUMBER_OF_VISITS, 12)
+                .set(QueryParams.PREVIOUS_VISIT_TIMESTAMP, 1476790000L)
+                .set(QueryParams.DATETIME_OF_REQUEST, "2016-10-18 14:12:03+0200");
+
+        long stringPayload = 0, compactPayload = 0;
+        CompactQuery last = null;
+        for (int i = 0; i < events; i++) {
+            // Distinct values like real events
+            trackMe.set(QueryParams.RANDOM_NUMBER, 100000 + i);
+            stringPayload += trackMe.build().length();
+            last = trackMe.buildCompact();
+            compactPayload += last.getByteCount();
+        }
+        assertEquals(trackMe.build(), last.toQuery());
+
+        // Strings hold UTF-16, two bytes per char on the heap
+        Log.d("CompactQuery", String.format("%d queued events: String %d KB payload, compact %d KB payload",
+                events, stringPayload * 2 / 1024, compactPayload / 1024));
+        assertTrue(compactPayload < stringPayload * 3 / 4);
+    }
+
+    @Test
+    public void testSetBenchmark() {
+        // One round is one event, new storage filled with typical parameters
+        final int rounds = 100000;
+        final QueryParams[] keys = {QueryParams.SITE_ID, QueryParams.RECORD, QueryParams.API_VERSION, QueryParams.VISITOR_ID,
+                QueryParams.ACTION_NAME, QueryParams.URL_PATH, QueryParams.RANDOM_NUMBER, QueryParams.DATETIME_OF_REQUEST};
+        long ordinalTime = 0, ordinalBytes = 0, mapTime = 0, mapBytes = 0;
+        // Warm up both before measuring
+        for (int pass = 0; pass < 5; pass++) {
+            long bytes = getAllocatedBytes();
+            long start = System.nanoTime();
+            for (int i = 0; i < rounds; i++) {
+                TrackMe trackMe = new TrackMe();
+                // Escapes like a tracked TrackMe does, so the JIT can't remove the allocations
+                mEscape = trackMe;
+                for (QueryParams key : keys)
+                    trackMe.set(key, "value");
+            }
+            ordinalTime = System.nanoTime() - start;
+            ordinalBytes = getAllocatedBytes() - bytes;
+
+            bytes = getAllocatedBytes();
+            start = System.nanoTime();
+            for (int i = 0; i < rounds; i++) {
+                MapTrackMe trackMe = new MapTrackMe();
+                mEscape = trackMe;
+                for (QueryParams key : keys)
+                    trackMe.set(key, "value");
+            }
+            mapTime = System.nanoTime() - start;
+            mapBytes = getAllocatedBytes() - bytes;
+        }
+        int sets = rounds * keys.length;
+        Log.d("TrackMe", String.format("TrackMe.set %.1f ns/op %d B/event, map based %.1f ns/op %d B/event",
+                (double) ordinalTime / sets, ordinalBytes / rounds, (double) mapTime / sets, mapBytes / rounds));
+        if (getAllocatedBytes() >= 0)
+            assertTrue(ordinalBytes < mapBytes);
+    }
+
+    private Object mEscape;
+
+    /**
+     * @return bytes allocated by this thread so far, -1 if the VM can't tell
+     */
+    private static long getAllocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean))
+            return -1;
+        return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * The previous, map based storage.
+     */
+    private static class MapTrackMe {
+        private final HashMap<String, String> mQueryParams = new HashMap<>(14);
+        private final CustomVariables mScreenCustomVariable = new CustomVariables();
+
+        synchronized MapTrackMe set(QueryParams key, String value) {
+            if (value == null)
+                mQueryParams.remove(key.toString());
+            else if (value.length() > 0)
+                mQueryParams.put(key.toString(), value);
+            return this;
+        }
+    }
+}
@@ -84,6 +84,16 @@ public class TrackerBulkURLWrapperTest {
         assertEquals(wrapper.getEvents(page).getString("token_auth"), "test_token");
     }
 
+    @Test
+    public void testGetRequests() throws Exception {
+        TrackerBulkURLWrapper wrapper = createWrapper(null, "?one=1", "?two=2");
+        TrackerBulkURLWrapper.Page page = wrapper.iterator().next();
+
+        assertEquals(wrapper.getRequests(page), Arrays.asList("?one=1", "?two=2"));
+        assertEquals(wrapper.getAuthToken(), "test_token");
+        assertNull(wrapper.getRequests(null));
+    }
+
     @Test
     public void testGetEventUrl() throws Exception {
         List<String> events = new LinkedList<String>();
@@ -101,4 +111,30 @@ public class TrackerBulkURLWrapperTest {
         assertFalse(page.isEmpty());
         assertEquals(wrapper.getEventUrl(page), new URL("http://example.com/?eve20"));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testByteBudget() throws Exception {
+        List<String> events = new LinkedList<String>();
+        // 10 + 3 bytes per event in the body
+        for (int i = 0; i < 10; i++)
+            events.add("?event=" + (100 + i));
+        TrackerBulkURLWrapper wrapper = new TrackerBulkURLWrapper(new URL("http://example.com/"), events, null, 100, 40);
+
+        Iterator<TrackerBulkURLWrapper.Page> it = wrapper.iterator();
+        TrackerBulkURLWrapper.Page page = it.next();
+        assertEquals(3, page.elementsCount());
+        assertEquals(39, page.getByteCount());
+
+        wrapper.setPageLimits(2, Integer.MAX_VALUE);
+        assertEquals(2, it.next().elementsCount());
+        wrapper.setPageLimits(100, 1);
+        // Events bigger than the budget are still sent on their own
+        page = it.next();
+        assertEquals(1, page.elementsCount());
+        assertEquals(wrapper.getEventUrl(page), new URL("http://example.com/?event=105"));
+
+        wrapper.setPageLimits(100, Integer.MAX_VALUE);
+        assertEquals(4, it.next().elementsCount());
+        assertFalse(it.hasNext());
+    }
+}
@@ -0,0 +1,86 @@
+package org.piwik.sdk.dispatcher;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+
+@Config(emulateSdk = 18, manifest = Config.NONE)
+@RunWith(RobolectricTestRunner.class)
+public class BulkRequestWriterTest {
+
+    private static String write(List<String> requests, String authToken) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int written = new BulkRequestWriter().write(out, requests, authToken);
+        assertEquals(out.size(), written);
+        assertEquals(written, BulkRequestWriter.measure(requests, authToken));
+        return out.toString("UTF-8");
+    }
+
+    @Test
+    public void testEnvelope() throws Exception {
+        assertEquals("{\"requests\":[\"?one=1\",\"?two=2\"],\"token_auth\":\"token\"}",
+                write(Arrays.asList("?one=1", "?two=2"), "token"));
+        assertEquals("{\"requests\":[\"?one=1\"]}", write(Collections.singletonList("?one=1"), null));
+        assertEquals("{\"requests\":[]}", write(Collections.<String>emptyList(), null));
+    }
+
+    @Test
+    public void testEscaping() throws Exception {
+        assertEquals("{\"requests\":[\"a\\\"b\\\\c\\u000ad\\u001f\"]}",
+                write(Collections.singletonList("a\"b\\c\nd\u001f"), null));
+    }
+
+    @Test
+    public void testUtf8() throws Exception {
+        String text = "ÄÖÜ € 日本 😀";
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new BulkRequestWriter().write(out, text);
+        assertEquals(Arrays.toString(text.getBytes("UTF-8")), Arrays.toString(out.toByteArray()));
+        assertEquals(out.size(), BulkRequestWriter.measure(text));
+        assertEquals("{\"requests\":[\"" + text + "\"]}", write(Collections.singletonList(text), null));
+    }
+
+    @Test
+    public void testUnpairedSurrogate() throws Exception {
+        String text = "a\uD83Db\uDE00";
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new BulkRequestWriter().write(out, text);
+        assertEquals(Arrays.toString(text.getBytes("UTF-8")), Arrays.toString(out.toByteArray()));
+        assertEquals(out.size(), BulkRequestWriter.measure(text));
+    }
+
+    @Test
+    public void testLargerThanBuffer() throws Exception {
+        List<String> requests = new ArrayList<>();
+        StringBuilder expected = new StringBuilder("{\"requests\":[");
+        for (int i = 0; i < 500; i++) {
+            String query = "?idsite=1&rec=1&action_name=%C3%A4%20screen%20" + i + "&e_n=€" + i;
+            requests.add(query);
+            if (i > 0)
+                expected.append(',');
+            expected.append('"').append(query).append('"');
+        }
+        expected.append("]}");
+        assertEquals(expected.toString(), write(requests, null));
+    }
+
+    @Test
+    public void testReuse() throws Exception {
+        BulkRequestWriter writer = new BulkRequestWriter();
+        ByteArrayOutputStream first = new ByteArrayOutputStream();
+        ByteArrayOutputStream second = new ByteArrayOutputStream();
+        writer.write(first, Collections.singletonList("?first=1"), null);
+        writer.write(second, Collections.singletonList("?second=2"), null);
+        assertEquals("{\"requests\":[\"?second=2\"]}", second.toString("UTF-8"));
+    }
+}
@@ -0,0 +1,75 @@
+package org.piwik.sdk.dispatcher;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.piwik.sdk.QueryParams;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+
+@Config(emulateSdk = 18, manifest = Config.NONE)
+@RunWith(RobolectricTestRunner.class)
+public class CompactQueryTest {
+
+    @Test
+    public void testToQuery() throws Exception {
+        CompactQuery.Builder builder = new CompactQuery.Builder();
+        assertTrue(builder.isEmpty());
+        assertEquals("", builder.build().toQuery());
+
+        CompactQuery query = builder
+                .add(QueryParams.SITE_ID, "1")
+                .add(QueryParams.ACTION_NAME, "a b&c ä€😀\ud83d")
+                .add(QueryParams.URL_PATH, null)
+                .add("custom key", "x=y")
+                .build();
+        assertEquals("?idsite=1&action_name=" + PercentEncoder.encode("a b&c ä€😀\ud83d") + "&custom%20key=x%3Dy", query.toQuery());
+        assertEquals(query.toQuery(), query.toString());
+        // The builder starts over
+        assertTrue(builder.isEmpty());
+    }
+
+    @Test
+    public void testGet() throws Exception {
+        CompactQuery query = new CompactQuery.Builder()
+                .add("dimension1", "foo")
+                .add(QueryParams.VISITOR_ID, "visitor")
+                .add(QueryParams.USER_ID, "ä user")
+                .build();
+        assertEquals("visitor", query.get(QueryParams.VISITOR_ID));
+        assertEquals("ä user", query.get(QueryParams.USER_ID));
+        assertNull(query.get(QueryParams.SITE_ID));
+    }
+
+    @Test
+    public void testLongValues() throws Exception {
+        // Lengths that need multi byte varints and a growing buffer
+        char[] chars = new char[100000];
+        Arrays.fill(chars, '€');
+        String value = new String(chars);
+        CompactQuery query = new CompactQuery.Builder(16).add(QueryParams.ACTION_NAME, value).add(QueryParams.SITE_ID, "1").build();
+        assertEquals(value, query.get(QueryParams.ACTION_NAME));
+        assertEquals("1", query.get(QueryParams.SITE_ID));
+        assertTrue(query.getBytes().length < value.length() * 3 + 16);
+    }
+
+    @Test
+    public void testFromBytes() throws Exception {
+        CompactQuery query = new CompactQuery.Builder().add(QueryParams.SITE_ID, "1").build();
+        CompactQuery copy = CompactQuery.fromBytes(query.getBytes());
+        assertNotNull(copy);
+        assertEquals(query, copy);
+        assertArrayEquals(query.getBytes(), copy.getBytes());
+
+        assertNull(CompactQuery.fromBytes(new byte[0]));
+        assertNull(CompactQuery.fromBytes("?idsite=1".getBytes("UTF-8")));
+    }
+}
@@ -0,0 +1,128 @@
+package org.piwik.sdk.dispatcher;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.piwik.sdk.Piwik;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+@Config(emulateSdk = 18, manifest = Config.NONE)
+@RunWith(RobolectricTestRunner.class)
+public class ConnectionReuseTest {
+    private ServerSocket mServer;
+    private final AtomicInteger mConnections = new AtomicInteger();
+    private final AtomicInteger mRequests = new AtomicInteger();
+
+    @Before
+    public void setup() throws Exception {
+        Piwik.getInstance(Robolectric.application).setDryRun(false);
+        mServer = new ServerSocket(0, 10, InetAddress.getByName("127.0.0.1"));
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        final Socket socket = mServer.accept();
+                        mConnections.incrementAndGet();
+                        new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                serve(socket);
+                            }
+                        }).start();
+                    }
+                } catch (IOException ignore) {
+                }
+            }
+        }).start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mServer.close();
+        Piwik.getInstance(Robolectric.application).setDryRun(true);
+    }
+
+    /**
+     * Minimal HTTP/1.1 server answering every request with 204 and honoring "Connection: close".
+     */
+    private void serve(Socket socket) {
+        try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+            OutputStream out = socket.getOutputStream();
+            String line;
+            while ((line = in.readLine()) != null) {
+                int contentLength = 0;
+                boolean close = false;
+                while ((line = in.readLine()) != null && !line.isEmpty()) {
+                    String header = line.toLowerCase();
+                    if (header.startsWith("content-length:"))
+                        contentLength = Integer.parseInt(header.substring(15).trim());
+                    else if (header.startsWith("connection:") && header.contains("close"))
+                        close = true;
+                }
+                for (int i = 0; i < contentLength; i++)
+                    in.read();
+                mRequests.incrementAndGet();
+                out.write("HTTP/1.1 204 No Content\r\n\r\n".getBytes("UTF-8"));
+                out.flush();
+                if (close)
+                    break;
+            }
+            socket.close();
+        } catch (IOException ignore) {
+        }
+    }
+
+    private Dispatcher createDispatcher() throws Exception {
+        URL url = new URL("http://127.0.0.1:" + mServer.getLocalPort() + "/piwik.php");
+        Dispatcher dispatcher = new Dispatcher(Piwik.getInstance(Robolectric.application), url, null);
+        dispatcher.setDispatchInterval(-1);
+        return dispatcher;
+    }
+
+    private void sendPages(Dispatcher dispatcher) throws Exception {
+        URL url = new URL("http://127.0.0.1:" + mServer.getLocalPort() + "/piwik.php");
+        for (int i = 0; i < 3; i++)
+            assertTrue(dispatcher.dispatch(new Packet(url, Arrays.asList("?page=" + i + "&a=1", "?page=" + i + "&b=2"), null)));
+        assertTrue(dispatcher.dispatch(new Packet(new URL(url + "?single=1"))));
+    }
+
+    @Test
+    public void testPagesShareConnection() throws Exception {
+        Dispatcher dispatcher = createDispatcher();
+        sendPages(dispatcher);
+        assertEquals(4, mRequests.get());
+        assertEquals(1, mConnections.get());
+        assertEquals(4, dispatcher.getMetrics().getHttpStatusCount(2));
+        assertEquals(0, dispatcher.getMetrics().getHttpStatusCount(DispatcherMetrics.STATUS_NO_RESPONSE));
+        assertTrue(dispatcher.getMetrics().getBytesSent() > 0);
+    }
+
+    @Test
+    public void testConnectionReuseDisabled() throws Exception {
+        Dispatcher dispatcher = createDispatcher();
+        dispatcher.setConnectionReuse(false);
+        sendPages(dispatcher);
+        assertEquals(4, mRequests.get());
+        assertEquals(4, mConnections.get());
+    }
+}
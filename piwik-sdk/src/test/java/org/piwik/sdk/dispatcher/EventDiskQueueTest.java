@@ -0,0 +1,318 @@
+package org.piwik.sdk.dispatcher;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.piwik.sdk.QueryParams;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+
+@Config(emulateSdk = 18, manifest = Config.NONE)
+@RunWith(RobolectricTestRunner.class)
+public class EventDiskQueueTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void testFifo() throws Exception {
+        EventDiskQueue queue = new EventDiskQueue(mFolder.newFolder());
+        assertTrue(queue.isEmpty());
+        for (int i = 0; i < 10; i++)
+            assertTrue(queue.add(new Event("?event=" + i)));
+        assertFalse(queue.isEmpty());
+
+        List<Event> out = new ArrayList<>();
+        assertEquals(4, queue.drainTo(out, 4));
+        assertEquals(6, queue.drainTo(out, 100));
+        assertTrue(queue.isEmpty());
+        for (int i = 0; i < 10; i++)
+            assertEquals("?event=" + i, out.get(i).getQuery());
+        queue.close();
+    }
+
+    @Test
+    public void testAddIsBuffered() throws Exception {
+        File dir = mFolder.newFolder();
+        EventDiskQueue queue = new EventDiskQueue(dir);
+        assertFalse(queue.needsSync());
+        queue.add(new Event("?a=1"));
+        // Nothing touched the disk on the caller's thread
+        assertTrue(queue.needsSync());
+        assertEquals(0, new File(dir, "0.seg").length());
+
+        queue.sync();
+        assertFalse(queue.needsSync());
+        assertTrue(new File(dir, "0.seg").length() > 0);
+        queue.close();
+    }
+
+    @Test
+    public void testReplayUncommitted() throws Exception {
+        File dir = mFolder.newFolder();
+        EventDiskQueue queue = new EventDiskQueue(dir);
+        queue.add(new Event("?a=1"));
+        queue.add(new Event("?b=2"));
+        queue.add(new Event("?c=3"));
+
+        List<Event> out = new ArrayList<>();
+        queue.drainTo(out, 1);
+        queue.commit();
+        queue.drainTo(out, 1);
+        // Simulate the process dying without commit or close
+        queue = new EventDiskQueue(dir);
+
+        out.clear();
+        queue.drainTo(out, 100);
+        assertEquals(2, out.size());
+        assertEquals("?b=2", out.get(0).getQuery());
+        assertEquals("?c=3", out.get(1).getQuery());
+        queue.close();
+    }
+
+    @Test
+    public void testTornRecordIsDropped() throws Exception {
+        File dir = mFolder.newFolder();
+        EventDiskQueue queue = new EventDiskQueue(dir);
+        queue.add(new Event("?complete=1"));
+        queue.close();
+
+        // Half written record: header promises more bytes than there are
+        FileOutputStream out = new FileOutputStream(new File(dir, "0.seg"), true);
+        out.write(new byte[]{0, 0, 0, 100, 'x', 'y'});
+        out.close();
+
+        queue = new EventDiskQueue(dir);
+        List<Event> events = new ArrayList<>();
+        queue.drainTo(events, 100);
+        assertEquals(1, events.size());
+        assertEquals("?complete=1", events.get(0).getQuery());
+
+        queue.add(new Event("?after=1"));
+        queue.drainTo(events, 100);
+        assertEquals("?after=1", events.get(1).getQuery());
+        queue.close();
+    }
+
+    @Test
+    public void testSegmentsAreCompacted() throws Exception {
+        File dir = mFolder.newFolder();
+        EventDiskQueue queue = new EventDiskQueue(dir);
+        StringBuilder payload = new StringBuilder("?data=");
+        for (int i = 0; i < 1000; i++)
+            payload.append('x');
+        long bytes = 0;
+        for (int i = 0; i < 1000; i++) {
+            queue.add(new Event(payload.toString() + i));
+            bytes += 4 + 8 + 4 + payload.length() + String.valueOf(i).length();
+        }
+        assertTrue(dir.list().length > 2);
+        assertEquals(bytes, queue.getPendingBytes());
+
+        List<Event> out = new ArrayList<>();
+        while (queue.drainTo(out, 100) > 0)
+            queue.commit();
+        assertEquals(1000, out.size());
+        assertEquals(payload.toString() + 999, out.get(999).getQuery());
+        assertEquals(0, queue.getPendingBytes());
+
+        // Only the cursor and the fresh write segment are left
+        assertEquals(2, dir.list().length);
+        queue.close();
+
+        queue = new EventDiskQueue(dir);
+        assertTrue(queue.isEmpty());
+        queue.close();
+    }
+
+    @Test
+    public void testStraySegmentFileIsIgnored() throws Exception {
+        File dir = mFolder.newFolder();
+        EventDiskQueue queue = new EventDiskQueue(dir);
+        queue.add(new Event("?a=1"));
+        queue.close();
+        assertTrue(new File(dir, "foo.seg").createNewFile());
+
+        queue = new EventDiskQueue(dir);
+        assertEquals("[0]", Arrays.toString(queue.listSegments()));
+        List<Event> out = new ArrayList<>();
+        assertEquals(1, queue.drainTo(out, 100));
+        queue.commit();
+        assertEquals("?a=1", out.get(0).getQuery());
+        // The unknown file is neither treated as a segment nor deleted
+        assertTrue(new File(dir, "foo.seg").exists());
+        queue.close();
+
+        queue = new EventDiskQueue(dir);
+        assertTrue(queue.isEmpty());
+        queue.close();
+    }
+
+    @Test
+    public void testUnknownVersionIsDiscarded() throws Exception {
+        File dir = mFolder.newFolder();
+        EventDiskQueue queue = new EventDiskQueue(dir);
+        queue.add(new Event("?a=1"));
+        assertTrue(queue.requeue(Arrays.asList(new Event("?retry=1"))));
+        queue.close();
+        assertEquals(EventDiskQueue.FORMAT_VERSION, readFirstByte(new File(dir, "0.seg")));
+        assertEquals(EventDiskQueue.FORMAT_VERSION, readFirstByte(new File(dir, EventDiskQueue.RETRY_FILE)));
+
+        // A segment and a retry file written by a future version, followed by a known segment
+        byte[] future = {(byte) (EventDiskQueue.FORMAT_VERSION + 1), 0, 0, 0, 12, 1, 2, 3};
+        writeFile(new File(dir, "1.seg"), future);
+        writeFile(new File(dir, EventDiskQueue.RETRY_FILE), future);
+        copyFile(new File(dir, "0.seg"), new File(dir, "2.seg"));
+
+        queue = new EventDiskQueue(dir);
+        assertFalse(new File(dir, "1.seg").exists());
+        assertFalse(new File(dir, EventDiskQueue.RETRY_FILE).exists());
+        List<Event> out = new ArrayList<>();
+        assertEquals(2, queue.drainTo(out, 100));
+        assertEquals("?a=1", out.get(0).getQuery());
+        assertEquals("?a=1", out.get(1).getQuery());
+        queue.commit();
+        assertTrue(queue.isEmpty());
+        queue.close();
+    }
+
+    @Test
+    public void testUtf8() throws Exception {
+        File dir = mFolder.newFolder();
+        EventDiskQueue queue = new EventDiskQueue(dir);
+        queue.add(new Event("?name=ÄÖÜ€"));
+        queue.close();
+
+        queue = new EventDiskQueue(dir);
+        List<Event> out = new ArrayList<>();
+        queue.drainTo(out, 1);
+        assertEquals("?name=ÄÖÜ€", out.get(0).getQuery());
+        queue.close();
+    }
+
+    @Test
+    public void testCompactQuery() throws Exception {
+        File dir = mFolder.newFolder();
+        EventDiskQueue queue = new EventDiskQueue(dir);
+        CompactQuery query = new CompactQuery.Builder().add(QueryParams.ACTION_NAME, "ÄÖÜ €").add("dimension1", "x").build();
+        queue.add(new Event("?plain=1"));
+        queue.add(new Event(query));
+        queue.close();
+
+        // Both kinds of records can be mixed, e.g. after an update
+        queue = new EventDiskQueue(dir);
+        List<Event> out = new ArrayList<>();
+        queue.drainTo(out, 2);
+        assertEquals("?plain=1", out.get(0).getQuery());
+        assertNull(out.get(0).getCompactQuery());
+        assertEquals(query, out.get(1).getCompactQuery());
+        assertEquals("?action_name=%C3%84%C3%96%C3%9C%20%E2%82%AC&dimension1=x", out.get(1).getQuery());
+        queue.close();
+    }
+
+    @Test
+    public void testRetryStateSurvives() throws Exception {
+        File dir = mFolder.newFolder();
+        EventDiskQueue queue = new EventDiskQueue(dir);
+        Event event = new Event("?retry=1", 1234L, 0);
+        event.incrementAttempts();
+        event.incrementAttempts();
+        queue.add(event);
+        queue.close();
+
+        queue = new EventDiskQueue(dir);
+        List<Event> out = new ArrayList<>();
+        queue.drainTo(out, 1);
+        assertEquals(1234L, out.get(0).getTimeStamp());
+        assertEquals(2, out.get(0).getAttempts());
+        queue.close();
+    }
+
+    @Test
+    public void testRequeueKeepsOrder() throws Exception {
+        File dir = mFolder.newFolder();
+        EventDiskQueue queue = new EventDiskQueue(dir);
+        for (int i = 0; i < 4; i++)
+            queue.add(new Event("?event=" + i));
+        List<Event> out = new ArrayList<>();
+        queue.drainTo(out, 2);
+        // Newer events arrive while the first two fail
+        queue.add(new Event("?event=4"));
+        queue.sync();
+        assertTrue(queue.requeue(out));
+        assertTrue(new File(dir, EventDiskQueue.RETRY_FILE).exists());
+        long pending = queue.getPendingBytes();
+
+        // The retries survive a restart and still come first
+        queue = new EventDiskQueue(dir);
+        assertEquals(pending, queue.getPendingBytes());
+        out.clear();
+        queue.drainTo(out, 1);
+        assertEquals("?event=0", out.get(0).getQuery());
+        // Failing again mixes the drained retry with the one that is still waiting
+        assertTrue(queue.requeue(out));
+        out.clear();
+        queue.drainTo(out, 100);
+        List<String> queries = new ArrayList<>();
+        for (Event event : out)
+            queries.add(event.getQuery());
+        assertEquals(Arrays.asList("?event=0", "?event=1", "?event=2", "?event=3", "?event=4"), queries);
+        queue.commit();
+        assertTrue(queue.isEmpty());
+        assertFalse(new File(dir, EventDiskQueue.RETRY_FILE).exists());
+        queue.close();
+    }
+
+    @Test
+    public void testClosedQueueRejects() throws Exception {
+        EventDiskQueue queue = new EventDiskQueue(mFolder.newFolder());
+        queue.close();
+        assertFalse(queue.add(new Event("?x=1")));
+        assertTrue(queue.isEmpty());
+    }
+
+    private static int readFirstByte(File file) throws Exception {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            return in.read();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void writeFile(File file, byte[] data) throws Exception {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void copyFile(File from, File to) throws Exception {
+        byte[] data = new byte[(int) from.length()];
+        FileInputStream in = new FileInputStream(from);
+        try {
+            int read = 0;
+            while (read < data.length)
+                read += in.read(data, read, data.length - read);
+        } finally {
+            in.close();
+        }
+        writeFile(to, data);
+    }
+}
@@ -0,0 +1,72 @@
+package org.piwik.sdk.dispatcher;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+@Config(emulateSdk = 18, manifest = Config.NONE)
+@RunWith(RobolectricTestRunner.class)
+public class HistogramTest {
+
+    @Test
+    public void testBuckets() {
+        assertEquals(0, Histogram.getBucketIndex(0));
+        assertEquals(1, Histogram.getBucketIndex(1));
+        assertEquals(2, Histogram.getBucketIndex(2));
+        assertEquals(2, Histogram.getBucketIndex(3));
+        assertEquals(11, Histogram.getBucketIndex(1024));
+        assertEquals(Histogram.BUCKET_COUNT - 1, Histogram.getBucketIndex(Long.MAX_VALUE));
+        for (int i = 1; i < Histogram.BUCKET_COUNT - 1; i++)
+            assertEquals(i + 1, Histogram.getBucketIndex(Histogram.getBucketUpperBound(i)));
+    }
+
+    @Test
+    public void testPercentiles() {
+        Histogram histogram = new Histogram();
+        assertEquals(0, histogram.getPercentile(50));
+        for (int i = 1; i <= 100; i++)
+            histogram.record(i);
+        histogram.record(-5);
+        assertEquals(101, histogram.getCount());
+        assertEquals(5050, histogram.getSum());
+        assertEquals(100, histogram.getMax());
+        long p50 = histogram.getPercentile(50);
+        assertTrue(p50 >= 50 && p50 < 100);
+        assertEquals(100, histogram.getPercentile(99));
+        assertEquals(100, histogram.getPercentile(100));
+    }
+
+    @Test
+    public void testConcurrentRecording() throws Exception {
+        final Histogram histogram = new Histogram();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            final int offset = t;
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 10000; i++)
+                        histogram.record(i + offset);
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+        assertEquals(40000, histogram.getCount());
+        assertEquals(10002, histogram.getMax());
+        long buckets = 0;
+        for (int i = 0; i < Histogram.BUCKET_COUNT; i++)
+            buckets += histogram.getBucketCount(i);
+        assertEquals(40000, buckets);
+    }
+}
@@ -0,0 +1,134 @@
+package org.piwik.sdk.dispatcher;
+
+import android.content.Context;
+import android.content.Intent;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.BatteryManager;
+import android.support.annotation.NonNull;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.piwik.sdk.Piwik;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowNetworkInfo;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+@Config(emulateSdk = 18, manifest = Config.NONE)
+@RunWith(RobolectricTestRunner.class)
+public class NetworkSchedulerTest {
+    private final List<Packet> mSent = Collections.synchronizedList(new ArrayList<Packet>());
+    private Dispatcher mDispatcher;
+    private NetworkScheduler mScheduler;
+
+    @Before
+    public void setup() throws Exception {
+        Piwik.getInstance(Robolectric.application).setDryRun(true);
+        mDispatcher = new Dispatcher(Piwik.getInstance(Robolectric.application), new URL("http://example.com/piwik.php"), null) {
+            @Override
+            public boolean dispatch(@NonNull Packet packet) {
+                mSent.add(packet);
+                return true;
+            }
+        };
+        mScheduler = new NetworkScheduler(Robolectric.application, mDispatcher);
+        setCharging(false);
+    }
+
+    private void setNetwork(int type, boolean connected) {
+        ConnectivityManager connectivity = (ConnectivityManager) Robolectric.application.getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo network = ShadowNetworkInfo.newInstance(connected ? NetworkInfo.DetailedState.CONNECTED : NetworkInfo.DetailedState.DISCONNECTED, type, 0, true, connected);
+        Robolectric.shadowOf(connectivity).setActiveNetworkInfo(network);
+    }
+
+    private void setCharging(boolean charging) {
+        Intent battery = new Intent(Intent.ACTION_BATTERY_CHANGED);
+        battery.putExtra(BatteryManager.EXTRA_PLUGGED, charging ? BatteryManager.BATTERY_PLUGGED_AC : 0);
+        Robolectric.application.sendStickyBroadcast(battery);
+    }
+
+    @Test
+    public void testOfflinePausesAndReconnectFlushes() throws Exception {
+        setNetwork(ConnectivityManager.TYPE_WIFI, false);
+        mScheduler.register();
+        mDispatcher.setScheduler(mScheduler);
+        mDispatcher.setDispatchInterval(60 * 1000);
+        mDispatcher.submit("?event=1");
+        mDispatcher.submit("?event=2");
+        assertFalse(mScheduler.canDispatch());
+        assertEquals(0, mDispatcher.getLaunchCount());
+
+        setNetwork(ConnectivityManager.TYPE_WIFI, true);
+        Robolectric.application.sendBroadcast(new Intent(ConnectivityManager.CONNECTIVITY_ACTION));
+        assertTrue(mDispatcher.awaitTermination(5, TimeUnit.SECONDS));
+        // Sent right away instead of after the 60s interval
+        assertEquals(1, mSent.size());
+        assertEquals(2, mSent.get(0).getRequests().size());
+        mScheduler.unregister();
+    }
+
+    @Test
+    public void testGoingOfflinePausesLoop() throws Exception {
+        setNetwork(ConnectivityManager.TYPE_WIFI, true);
+        mDispatcher.setScheduler(mScheduler);
+        mDispatcher.setDispatchInterval(50);
+        mDispatcher.submit("?event=1");
+        setNetwork(ConnectivityManager.TYPE_WIFI, false);
+        assertTrue(mDispatcher.awaitTermination(1, TimeUnit.SECONDS));
+        assertEquals(0, mSent.size());
+    }
+
+    @Test
+    public void testMeteredInterval() throws Exception {
+        setNetwork(ConnectivityManager.TYPE_WIFI, true);
+        assertFalse(mScheduler.isMetered());
+        assertEquals(1000, mScheduler.getDispatchInterval(1000));
+
+        setNetwork(ConnectivityManager.TYPE_MOBILE, true);
+        assertTrue(mScheduler.isMetered());
+        assertEquals(4000, mScheduler.getDispatchInterval(1000));
+        mScheduler.setMeteredIntervalFactor(2);
+        assertEquals(2000, mScheduler.getDispatchInterval(1000));
+        assertEquals(-1, mScheduler.getDispatchInterval(-1));
+
+        setCharging(true);
+        assertTrue(mScheduler.isCharging());
+        assertEquals(1000, mScheduler.getDispatchInterval(1000));
+    }
+
+    @Test
+    public void testRegisteredSchedulerCachesState() throws Exception {
+        setNetwork(ConnectivityManager.TYPE_MOBILE, true);
+        mScheduler.register();
+        assertTrue(mScheduler.canDispatch());
+        assertEquals(4000, mScheduler.getDispatchInterval(1000));
+
+        // Only the broadcasts update what the dispatcher sees
+        setNetwork(ConnectivityManager.TYPE_WIFI, false);
+        assertTrue(mScheduler.canDispatch());
+        Robolectric.application.sendBroadcast(new Intent(ConnectivityManager.CONNECTIVITY_ACTION));
+        assertFalse(mScheduler.canDispatch());
+
+        setNetwork(ConnectivityManager.TYPE_MOBILE, true);
+        Robolectric.application.sendBroadcast(new Intent(ConnectivityManager.CONNECTIVITY_ACTION));
+        assertTrue(mScheduler.canDispatch());
+        Robolectric.application.sendBroadcast(new Intent(Intent.ACTION_POWER_CONNECTED));
+        assertEquals(1000, mScheduler.getDispatchInterval(1000));
+        Robolectric.application.sendBroadcast(new Intent(Intent.ACTION_POWER_DISCONNECTED));
+        assertEquals(4000, mScheduler.getDispatchInterval(1000));
+        mScheduler.unregister();
+    }
+}
@@ -0,0 +1,61 @@
+package org.piwik.sdk.dispatcher;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+@Config(emulateSdk = 18, manifest = Config.NONE)
+@RunWith(RobolectricTestRunner.class)
+public class PageBudgetTest {
+    private static final int TIMEOUT = 5000;
+    private static final int MAX = 128 * 1024;
+
+    @Test
+    public void testGrowsOnFastLink() throws Exception {
+        PageBudget budget = new PageBudget();
+        assertEquals(PageBudget.INITIAL_BYTES, budget.getBytes(MAX));
+        for (int i = 0; i < 10; i++)
+            budget.onPageSent(budget.getBytes(MAX), 50, true, TIMEOUT, MAX);
+        assertEquals(MAX, budget.getBytes(MAX));
+    }
+
+    @Test
+    public void testSmallPagesDontGrow() throws Exception {
+        PageBudget budget = new PageBudget();
+        budget.onPageSent(500, 10, true, TIMEOUT, MAX);
+        assertEquals(PageBudget.INITIAL_BYTES, budget.getBytes(MAX));
+    }
+
+    @Test
+    public void testShrinksOnSlowLink() throws Exception {
+        PageBudget budget = new PageBudget();
+        // 8KB took 5s, only half of that fits into the 2.5s target
+        budget.onPageSent(8 * 1024, 5000, true, TIMEOUT, MAX);
+        assertEquals(4 * 1024, budget.getBytes(MAX));
+        budget.onPageSent(4 * 1024, 20000, true, TIMEOUT, MAX);
+        assertEquals(PageBudget.MIN_BYTES, budget.getBytes(MAX));
+    }
+
+    @Test
+    public void testHalvesOnFailure() throws Exception {
+        PageBudget budget = new PageBudget();
+        budget.onPageSent(8 * 1024, 100, false, TIMEOUT, MAX);
+        assertEquals(4 * 1024, budget.getBytes(MAX));
+        for (int i = 0; i < 10; i++)
+            budget.onPageSent(budget.getBytes(MAX), 100, false, TIMEOUT, MAX);
+        assertEquals(PageBudget.MIN_BYTES, budget.getBytes(MAX));
+    }
+
+    @Test
+    public void testMaxBytes() throws Exception {
+        PageBudget budget = new PageBudget();
+        assertEquals(1024, budget.getBytes(1024));
+        budget.onPageSent(1024, 10, false, TIMEOUT, 1024);
+        assertTrue(budget.getBytes(1024) <= 1024);
+    }
+}
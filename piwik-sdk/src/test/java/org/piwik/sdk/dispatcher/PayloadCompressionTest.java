@@ -0,0 +1,54 @@
+package org.piwik.sdk.dispatcher;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+
+@Config(emulateSdk = 18, manifest = Config.NONE)
+@RunWith(RobolectricTestRunner.class)
+public class PayloadCompressionTest {
+
+    private static byte[] gunzip(byte[] data) throws Exception {
+        GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(data));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int read;
+        while ((read = in.read(buffer)) != -1)
+            out.write(buffer, 0, read);
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testBulkPayloadShrinks() throws Exception {
+        List<String> requests = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            requests.add("?idsite=1&rec=1&apiv=1&_id=4a3b2c1d0e9f8a7b&uid=f81d4fae-7dec-11d0-a765-00a0c91e6bf6"
+                    + "&res=1080x1920&ua=Dalvik%2F2.1.0%20(Linux%3B%20U%3B%20Android%206.0)&lang=en"
+                    + "&url=http%3A%2F%2Forg.piwik.demo%2Fscreen" + i + "&rand=" + (1000 + i * 7));
+        }
+        BulkRequestWriter writer = new BulkRequestWriter();
+
+        ByteArrayOutputStream raw = new ByteArrayOutputStream();
+        writer.write(raw, requests, null);
+
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        GZIPOutputStream gzip = new GZIPOutputStream(compressed);
+        writer.write(gzip, requests, null);
+        gzip.close();
+
+        assertTrue(compressed.size() * 5 < raw.size());
+        assertArrayEquals(raw.toByteArray(), gunzip(compressed.toByteArray()));
+    }
+}
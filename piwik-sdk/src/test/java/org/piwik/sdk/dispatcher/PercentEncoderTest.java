@@ -0,0 +1,113 @@
+package org.piwik.sdk.dispatcher;
+
+import android.util.Log;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.net.URLEncoder;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+
+@Config(emulateSdk = 18, manifest = Config.NONE)
+@RunWith(RobolectricTestRunner.class)
+public class PercentEncoderTest {
+
+    /**
+     * What {@link Dispatcher#urlEncodeUTF8(String)} used to do.
+     */
+    private static String legacyEncode(String value) throws Exception {
+        return URLEncoder.encode(value, "UTF-8").replaceAll("\\+", "%20");
+    }
+
+    @Test
+    public void testEncode() throws Exception {
+        assertEquals("", PercentEncoder.encode(null));
+        assertEquals("", PercentEncoder.encode(""));
+        assertEquals("a-Z_0.9*", PercentEncoder.encode("a-Z_0.9*"));
+        assertEquals("a%20b%2Bc%26d%3De", PercentEncoder.encode("a b+c&d=e"));
+        assertEquals("%C3%A4%E2%82%AC%F0%9F%98%80", PercentEncoder.encode("ä€😀"));
+        // Unpaired surrogates
+        assertEquals("%3Fa%3F", PercentEncoder.encode("\ud83da\ude00"));
+        assertEquals("%3F", PercentEncoder.encode("\ud83d"));
+    }
+
+    @Test
+    public void testSafeValuesAreNotCopied() throws Exception {
+        String safe = "action_name";
+        assertTrue(PercentEncoder.isSafe(safe));
+        assertSame(safe, PercentEncoder.encode(safe));
+        assertFalse(PercentEncoder.isSafe("a b"));
+
+        StringBuilder sb = new StringBuilder("?");
+        PercentEncoder.encode(sb, safe).append('=');
+        PercentEncoder.encode(sb, "/path?x=1");
+        PercentEncoder.encode(sb, null);
+        assertEquals("?action_name=%2Fpath%3Fx%3D1", sb.toString());
+    }
+
+    @Test
+    public void testFuzzAgainstURLEncoder() throws Exception {
+        Random random = new Random(1337);
+        // Bias towards the interesting ranges, ASCII, 2 and 3 byte chars and surrogates
+        final char[][] ranges = {{0, 0x7F}, {0x80, 0x7FF}, {0x800, 0xFFFF}, {0xD800, 0xDFFF}};
+        for (int i = 0; i < 20000; i++) {
+            char[] chars = new char[random.nextInt(32)];
+            for (int j = 0; j < chars.length; j++) {
+                char[] range = ranges[random.nextInt(ranges.length)];
+                chars[j] = (char) (range[0] + random.nextInt(range[1] - range[0] + 1));
+            }
+            String value = new String(chars);
+            assertEquals(legacyEncode(value), PercentEncoder.encode(value));
+        }
+    }
+
+    @Test
+    public void testMapEncoding() throws Exception {
+        Map<String, String> map = new LinkedHashMap<>();
+        assertEquals("", Dispatcher.urlEncodeUTF8(map));
+        map.put("idsite", "1");
+        map.put("action_name", "a b");
+        assertEquals("?idsite=1&action_name=a%20b", Dispatcher.urlEncodeUTF8(map));
+    }
+
+    @Test
+    public void testBenchmark() throws Exception {
+        final String[] values = {"idsite", "1", "action_name", "Main screen / Settings", "url", "http://com.example.app/main/settings",
+                "_cvar", "{\"1\":[\"App version\",\"1.0\"]}", "e_n", "Übersicht"};
+        final int rounds = 20000;
+        long legacy = 0, encoder = 0;
+        int length = 0;
+        StringBuilder sb = new StringBuilder(256);
+        for (int pass = 0; pass < 3; pass++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < rounds; i++) {
+                for (String value : values)
+                    length += legacyEncode(value).length();
+            }
+            legacy = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < rounds; i++) {
+                sb.setLength(0);
+                for (String value : values)
+                    PercentEncoder.encode(sb, value);
+                length -= sb.length();
+            }
+            encoder = System.nanoTime() - start;
+        }
+        // Both produced the same amount of output
+        assertEquals(0, length);
+        int encodes = rounds * values.length;
+        Log.d("PercentEncoder", String.format("URLEncoder %.1f ns/value, PercentEncoder %.1f ns/value", (double) legacy / encodes, (double) encoder / encodes));
+    }
+}
@@ -0,0 +1,59 @@
+package org.piwik.sdk.dispatcher;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.piwik.sdk.QueryParams;
+import org.piwik.sdk.TrackerBulkURLWrapper;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+
+@Config(emulateSdk = 18, manifest = Config.NONE)
+@RunWith(RobolectricTestRunner.class)
+public class QueryListTest {
+
+    @Test
+    public void testEncodesPerPage() throws Exception {
+        List<Event> events = new ArrayList<>();
+        for (int i = 0; i < 10; i++)
+            events.add(new Event(new CompactQuery.Builder().add(QueryParams.ACTION_NAME, "event " + i).build()));
+        QueryList queries = new QueryList(events);
+        assertEquals(10, queries.size());
+        assertEquals(0, queries.getEncodedCount());
+
+        TrackerBulkURLWrapper wrapper = new TrackerBulkURLWrapper(new URL("http://example.com/"), queries, null, 3, Integer.MAX_VALUE);
+        Iterator<TrackerBulkURLWrapper.Page> pages = wrapper.iterator();
+        TrackerBulkURLWrapper.Page page = pages.next();
+        // Cutting the page only encoded its own events
+        assertEquals(3, queries.getEncodedCount());
+        List<String> requests = wrapper.getRequests(page);
+        assertEquals("?action_name=event%200", requests.get(0));
+        // The query is kept for the request instead of being encoded again
+        assertSame(requests.get(0), queries.get(0));
+
+        queries.release(page.elementsCount());
+        page = pages.next();
+        assertEquals(3, queries.getEncodedCount());
+        assertEquals("?action_name=event%203", wrapper.getRequests(page).get(0));
+    }
+
+    @Test
+    public void testReleasedQueriesAreNotKept() {
+        List<Event> events = new ArrayList<>();
+        events.add(new Event("?a=1"));
+        events.add(new Event(new CompactQuery.Builder().add("b", "2").build()));
+        QueryList queries = new QueryList(events);
+        queries.release(2);
+        assertEquals("?a=1", queries.get(0));
+        assertEquals("?b=2", queries.get(1));
+        assertEquals(0, queries.getEncodedCount());
+    }
+}
@@ -0,0 +1,92 @@
+package org.piwik.sdk.dispatcher;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.piwik.sdk.Piwik;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.net.URL;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+
+@Config(emulateSdk = 18, manifest = Config.NONE)
+@RunWith(RobolectricTestRunner.class)
+public class TransportTest {
+
+    @Before
+    public void setup() {
+        Piwik.getInstance(Robolectric.application).setDryRun(false);
+    }
+
+    @After
+    public void tearDown() {
+        Piwik.getInstance(Robolectric.application).setDryRun(true);
+    }
+
+    private Dispatcher createDispatcher() throws Exception {
+        Dispatcher dispatcher = new Dispatcher(Piwik.getInstance(Robolectric.application), new URL("http://example.com/piwik.php"), null);
+        dispatcher.setDispatchInterval(-1);
+        return dispatcher;
+    }
+
+    @Test
+    public void testDefaultTransport() throws Exception {
+        Dispatcher dispatcher = createDispatcher();
+        assertTrue(dispatcher.getTransport() instanceof HttpTransport);
+        MemoryTransport transport = new MemoryTransport();
+        dispatcher.setTransport(transport);
+        assertSame(transport, dispatcher.getTransport());
+        dispatcher.setTransport(null);
+        assertTrue(dispatcher.getTransport() instanceof HttpTransport);
+    }
+
+    @Test
+    public void testMemoryTransport() throws Exception {
+        Dispatcher dispatcher = createDispatcher();
+        MemoryTransport transport = new MemoryTransport();
+        dispatcher.setTransport(transport);
+        for (int i = 0; i < 30; i++)
+            dispatcher.submit("?event=" + i);
+        dispatcher.forceDispatch();
+        Thread.sleep(100);
+
+        int events = 0;
+        for (Packet packet : transport.getPackets())
+            events += packet.getRequests() != null ? packet.getRequests().size() : 1;
+        assertEquals(30, events);
+        assertEquals(0, dispatcher.getDryRunOutput().size());
+    }
+
+    @Test
+    public void testLoopbackTransport() throws Exception {
+        LoopbackTransport transport = new LoopbackTransport();
+        URL url = new URL("http://example.com/piwik.php");
+        assertTrue(transport.send(new Packet(url, Arrays.asList("?a=1", "?b=2"), null)));
+        assertTrue(transport.send(new Packet(new URL(url + "?c=3"))));
+        assertEquals(2, transport.getPacketCount());
+        assertEquals(3, transport.getEventCount());
+        assertEquals("{\"requests\":[\"?a=1\",\"?b=2\"]}".length() + (url + "?c=3").length(), transport.getByteCount());
+    }
+
+    @Test
+    public void testLoopbackThroughput() throws Exception {
+        Dispatcher dispatcher = createDispatcher();
+        LoopbackTransport transport = new LoopbackTransport(1);
+        dispatcher.setTransport(transport);
+        for (int i = 0; i < 1000; i++)
+            dispatcher.submit("?idsite=1&rec=1&_id=visitor" + (i % 4) + "&action_name=screen" + i);
+        dispatcher.forceDispatch();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (transport.getEventCount() < 1000 && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertEquals(1000, transport.getEventCount());
+    }
+}
@@ -8,6 +8,11 @@ import org.junit.runner.RunWith;
 import org.piwik.sdk.FullEnvTestRunner;
 import org.robolectric.annotation.Config;
 
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
 
 @Config(emulateSdk = 18, manifest = Config.NONE)
 @RunWith(FullEnvTestRunner.class)
@@ -22,6 +27,17 @@ public class LogyTest {
     @AfterClass
     public static void unpatchLog() {
         Logy.sLoglevel = level;
+        Logy.setBufferSize(0);
+    }
+
+    private static class CountingArg {
+        int mCalls;
+
+        @Override
+        public String toString() {
+            mCalls++;
+            return "arg";
+        }
     }
 
     @Test
@@ -49,4 +65,50 @@ public class LogyTest {
         Logy.e("PREFIX", "message");
         Logy.e("PREFIX", "message", new Throwable());
     }
+
+    @Test
+    public void testFormatIsDeferred() throws Exception {
+        CountingArg arg = new CountingArg();
+        Logy.setBufferSize(0);
+        Logy.sLoglevel = Logy.QUIET;
+        Logy.d("PREFIX", "message %s", arg);
+        Logy.w("PREFIX", "message %s %s", arg, arg);
+        assertEquals(0, arg.mCalls);
+
+        Logy.sLoglevel = Logy.VERBOSE;
+        Logy.d("PREFIX", "message %s", arg);
+        assertEquals(1, arg.mCalls);
+        // Broken formats don't throw
+        Logy.d("PREFIX", "message %d", arg);
+    }
+
+    @Test
+    public void testBuffer() throws Exception {
+        Logy.sLoglevel = Logy.QUIET;
+        assertTrue(Logy.dumpBuffer().isEmpty());
+        Logy.setBufferSize(3);
+        CountingArg arg = new CountingArg();
+        Logy.d("PREFIX", "first");
+        Logy.d("PREFIX", "second %s", arg);
+        Logy.w("PREFIX", "third %s %d", arg, 3);
+        Logy.e("PREFIX", "fourth", new Throwable("boom"));
+        // Buffered independent of the log level and only formatted on dump
+        assertEquals(0, arg.mCalls);
+
+        List<String> lines = Logy.dumpBuffer();
+        assertEquals(3, lines.size());
+        assertTrue(lines.get(0), lines.get(0).endsWith(" D/PREFIX: second arg"));
+        assertTrue(lines.get(1), lines.get(1).endsWith(" W/PREFIX: third arg 3"));
+        assertTrue(lines.get(2), lines.get(2).contains(" E/PREFIX: fourth\n"));
+        assertTrue(lines.get(2), lines.get(2).contains("boom"));
+
+        Logy.d("PREFIX", "fifth %d", 1000);
+        assertTrue(Logy.dumpBuffer().get(2).endsWith(" D/PREFIX: fifth 1000"));
+
+        Logy.clearBuffer();
+        assertTrue(Logy.dumpBuffer().isEmpty());
+        Logy.setBufferSize(0);
+        Logy.d("PREFIX", "dropped");
+        assertTrue(Logy.dumpBuffer().isEmpty());
+    }
 }